@@ -0,0 +1,271 @@
+package com.aisouti;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Encodes the upload image against a byte budget and a vision-token budget.
+ *
+ * The search is bounded: pick detail from the text size, scale to what
+ * the model will actually look at (and further down for the token budget),
+ * then binary search the JPEG quality. WebP is only tried when no JPEG
+ * quality fits, since not every compatible endpoint accepts it.
+ *
+ * Not thread safe; the output stream is pooled.
+ */
+public class AdaptiveEncoder {
+    private static final String TAG = "AdaptiveEncoder";
+
+    private static final int MAX_QUALITY = 90;
+    private static final int MIN_QUALITY = 40;
+    private static final int QUALITY_STEPS = 4;
+    private static final int MAX_RESCALES = 2;
+    private static final float RESCALE_FACTOR = 0.8f;
+
+    // The model sees at most this much in each detail mode
+    private static final int HIGH_MAX_SIDE = 2048;
+    private static final int HIGH_SHORT_SIDE = 768;
+    private static final int LOW_MAX_SIDE = 512;
+    // Below this the text of a full question is no longer readable
+    private static final int MIN_SHORT_SIDE = 384;
+
+    // Text lines shorter than this after the low detail downscale are not readable
+    private static final int LOW_DETAIL_MIN_LINE_HEIGHT = 20;
+    private static final int EDGE_THRESHOLD = 48;
+    // Luminance steps for a row to count as part of a text line
+    private static final int MIN_ROW_EDGES = 2;
+    private static final int SCAN_STEP = 2;
+
+    private int byteBudget;
+    private int tokenBudget;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private int[] row = new int[0];
+    private int[] runs = new int[0];
+
+    /** What was chosen for one upload, for logging and the stats line. */
+    public static final class Result {
+        public byte[] bytes;
+        public String mimeType;
+        public int width;
+        public int height;
+        public int quality;
+        public String detail;
+        public int tokens;
+        // Median text line height in source pixels, 0 when no text was found
+        public int lineHeight;
+        public int attempts;
+        public long encodeMs;
+
+        public String format() {
+            return "image/webp".equals(mimeType) ? "WebP" : "JPEG";
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%dx%d %s q%d detail=%s ~%d tokens %d bytes, "
+                    + "lines %dpx, %d attempts, %dms",
+                    width, height, format(), quality, detail, tokens, bytes.length,
+                    lineHeight, attempts, encodeMs);
+        }
+    }
+
+    /** Maximum encoded size in bytes, 0 for no limit. */
+    public void setByteBudget(int byteBudget) {
+        this.byteBudget = Math.max(0, byteBudget);
+    }
+
+    /** Maximum estimated vision tokens, 0 for no limit. */
+    public void setTokenBudget(int tokenBudget) {
+        this.tokenBudget = Math.max(0, tokenBudget);
+    }
+
+    public Result encode(Bitmap source) {
+        long start = SystemClock.elapsedRealtime();
+        Result result = new Result();
+        int width = source.getWidth();
+        int height = source.getHeight();
+
+        result.lineHeight = lineHeight(source);
+        result.detail = chooseDetail(width, height, result.lineHeight);
+
+        float scale = "low".equals(result.detail)
+                ? Math.min(1f, (float) LOW_MAX_SIDE / Math.max(width, height))
+                : highDetailScale(width, height);
+
+        for (int round = 0; ; round++) {
+            int w = Math.max(1, Math.round(width * scale));
+            int h = Math.max(1, Math.round(height * scale));
+            Bitmap scaled = w == width && h == height
+                    ? source : Bitmap.createScaledBitmap(source, w, h, true);
+            try {
+                boolean fits = searchQuality(scaled, result);
+                result.width = w;
+                result.height = h;
+                if (fits || round >= MAX_RESCALES || Math.min(w, h) * RESCALE_FACTOR < MIN_SHORT_SIDE) {
+                    break;
+                }
+            } finally {
+                if (scaled != source) {
+                    scaled.recycle();
+                }
+            }
+            scale *= RESCALE_FACTOR;
+        }
+
+        result.tokens = VisionTokenEstimator.estimate(result.width, result.height, result.detail);
+        result.encodeMs = SystemClock.elapsedRealtime() - start;
+        Log.d(TAG, "Encoded " + width + "x" + height + " -> " + result);
+        return result;
+    }
+
+    /**
+     * Low detail is a flat 85 tokens but the model only sees 512px, so it is
+     * only used when the measured text stays readable at that size or when
+     * the token budget leaves no choice. A few lines of small text on a plain
+     * screen still need high detail, and so does a screen where no line was
+     * found, since faint or low-contrast text is not measured at all.
+     */
+    private String chooseDetail(int width, int height, int lineHeight) {
+        float lowScale = Math.min(1f, (float) LOW_MAX_SIDE / Math.max(width, height));
+        if (lineHeight > 0 && lineHeight * lowScale >= LOW_DETAIL_MIN_LINE_HEIGHT) {
+            return "low";
+        }
+        if (tokenBudget > 0) {
+            float scale = MIN_SHORT_SIDE / (float) Math.min(width, height);
+            int w = Math.round(width * Math.min(1f, scale));
+            int h = Math.round(height * Math.min(1f, scale));
+            if (VisionTokenEstimator.estimate(w, h, "high") > tokenBudget) {
+                return "low";
+            }
+        }
+        return "high";
+    }
+
+    // Largest scale that the high detail resize would not throw away anyway, within the token budget
+    private float highDetailScale(int width, int height) {
+        float scale = Math.min(1f, (float) HIGH_MAX_SIDE / Math.max(width, height));
+        scale = Math.min(scale, (float) HIGH_SHORT_SIDE / Math.min(width, height));
+        scale = Math.min(1f, scale);
+        while (tokenBudget > 0
+                && VisionTokenEstimator.estimate(Math.round(width * scale), Math.round(height * scale), "high") > tokenBudget
+                && Math.min(width, height) * scale * RESCALE_FACTOR >= MIN_SHORT_SIDE) {
+            scale *= RESCALE_FACTOR;
+        }
+        return scale;
+    }
+
+    /**
+     * Binary searches the highest JPEG quality within the byte budget, then
+     * falls back to WebP at the lowest quality. Returns false when nothing fits;
+     * the result then holds the smallest encoding found.
+     */
+    private boolean searchQuality(Bitmap bitmap, Result result) {
+        result.bytes = compress(bitmap, Bitmap.CompressFormat.JPEG, MAX_QUALITY, result);
+        result.mimeType = "image/jpeg";
+        result.quality = MAX_QUALITY;
+        if (fits(result.bytes)) {
+            return true;
+        }
+
+        int lo = MIN_QUALITY;
+        int hi = MAX_QUALITY - 1;
+        byte[] best = null;
+        int bestQuality = 0;
+        for (int i = 0; i < QUALITY_STEPS && lo <= hi; i++) {
+            int q = (lo + hi) / 2;
+            byte[] bytes = compress(bitmap, Bitmap.CompressFormat.JPEG, q, result);
+            if (fits(bytes)) {
+                best = bytes;
+                bestQuality = q;
+                lo = q + 1;
+            } else {
+                hi = q - 1;
+                if (bytes.length < result.bytes.length) {
+                    result.bytes = bytes;
+                    result.quality = q;
+                }
+            }
+        }
+        if (best != null) {
+            result.bytes = best;
+            result.quality = bestQuality;
+            return true;
+        }
+
+        byte[] webp = compress(bitmap, webpFormat(), MIN_QUALITY, result);
+        if (webp.length < result.bytes.length) {
+            result.bytes = webp;
+            result.mimeType = "image/webp";
+            result.quality = MIN_QUALITY;
+        }
+        return fits(result.bytes);
+    }
+
+    private boolean fits(byte[] bytes) {
+        return byteBudget == 0 || bytes.length <= byteBudget;
+    }
+
+    private byte[] compress(Bitmap bitmap, Bitmap.CompressFormat format, int quality, Result result) {
+        out.reset();
+        bitmap.compress(format, quality, out);
+        result.attempts++;
+        return out.toByteArray();
+    }
+
+    /** Lossy WebP; before API 30 the plain WEBP format is lossy at quality below 100. */
+    @SuppressWarnings("deprecation")
+    static Bitmap.CompressFormat webpFormat() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+    }
+
+    /**
+     * Median height of the text lines: rows with luminance steps are text,
+     * and each run of consecutive text rows is one line. Scans every other
+     * row and column. Returns 0 when there is no text.
+     */
+    int lineHeight(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (row.length < width) {
+            row = new int[width];
+        }
+        if (runs.length < height / SCAN_STEP + 1) {
+            runs = new int[height / SCAN_STEP + 1];
+        }
+        int count = 0;
+        int run = 0;
+        for (int y = 0; y < height; y += SCAN_STEP) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            int edges = 0;
+            int previous = ImagePreprocessor.luma(row[0]);
+            for (int x = SCAN_STEP; x < width && edges < MIN_ROW_EDGES; x += SCAN_STEP) {
+                int l = ImagePreprocessor.luma(row[x]);
+                if (Math.abs(l - previous) > EDGE_THRESHOLD) {
+                    edges++;
+                }
+                previous = l;
+            }
+            if (edges >= MIN_ROW_EDGES) {
+                run += SCAN_STEP;
+            } else if (run > 0) {
+                runs[count++] = run;
+                run = 0;
+            }
+        }
+        if (run > 0) {
+            runs[count++] = run;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        Arrays.sort(runs, 0, count);
+        return runs[count / 2];
+    }
+}
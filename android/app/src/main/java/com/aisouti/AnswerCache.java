@@ -0,0 +1,469 @@
+package com.aisouti;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Two-tier answer cache keyed by an {@link ImageKey} of the uploaded image
+ * plus a digest of everything else that shapes the answer (model, prompts,
+ * detail). A lookup returns the closest entry with the same prompt key whose
+ * coarse hash is within {@link #MAX_DISTANCE} bits, whose size is nearly the
+ * same and whose fine hash is within {@link #MAX_DETAIL_DISTANCE} bits, so
+ * recaptures of the same question are answered without a request while
+ * other questions on the same quiz template are not.
+ *
+ * Requests that are still running are registered as {@link InFlight}, so a
+ * near-duplicate request can follow the running one instead of paying for
+ * a second call.
+ *
+ * Disk entries are UTF-8 files named
+ * {@code <hash>_<width>x<height>_<detailTag>_<promptKey>} holding the fine
+ * hash in hex on the first line and the answer after it; the index is
+ * rebuilt from the file names on first use and the fine hash is read with
+ * the answer. All methods may block on disk and must not be
+ * called on the main thread.
+ */
+public class AnswerCache {
+    private static final String TAG = "AnswerCache";
+
+    // The 64-bit coarse dHash has too few bits to tell similar quiz layouts
+    // apart, so it only picks candidates of nearly the same size; the fine
+    // hash confirms them, as different text flips far more of its bits than
+    // re-encoding the same screen does
+    static final int MAX_DISTANCE = 2;
+    static final int SIZE_TOLERANCE_PERCENT = 2;
+    static final int MAX_DETAIL_DISTANCE = 24;
+    private static final int MEMORY_ENTRIES = 32;
+    private static final int DISK_ENTRIES = 200;
+    private static final long DISK_BYTES = 4 * 1024 * 1024;
+
+    /** Receives a followed request's output, on the thread that runs it. */
+    public interface Listener {
+        /** Text received so far is replayed as one delta when joining. */
+        void onDelta(String delta);
+
+        void onComplete(String answer);
+
+        void onFailed();
+    }
+
+    /** Perceptual hashes and pixel size of an uploaded image. */
+    public static final class ImageKey {
+        final long hash;
+        // Fine hash, null for keys parsed from a file name
+        final long[] detail;
+        final int width;
+        final int height;
+
+        ImageKey(long hash, long[] detail, int width, int height) {
+            this.hash = hash;
+            this.detail = detail;
+            this.width = width;
+            this.height = height;
+        }
+
+        public static ImageKey of(Bitmap bitmap) {
+            int[] grid = PerceptualHash.grid(bitmap);
+            return new ImageKey(PerceptualHash.dHash(PerceptualHash.coarse(grid)), PerceptualHash.fineHash(grid),
+                    bitmap.getWidth(), bitmap.getHeight());
+        }
+
+        /**
+         * Coarse Hamming distance to another key, or MAX_DISTANCE + 1 when
+         * the sizes differ or the fine hashes do not confirm the match.
+         */
+        int distance(ImageKey other) {
+            int distance = layoutDistance(other);
+            if (distance > MAX_DISTANCE || detail == null || other.detail == null
+                    || PerceptualHash.distance(detail, other.detail) > MAX_DETAIL_DISTANCE) {
+                return MAX_DISTANCE + 1;
+            }
+            return distance;
+        }
+
+        /** Coarse Hamming distance only, or MAX_DISTANCE + 1 when the sizes differ. */
+        int layoutDistance(ImageKey other) {
+            if (!similar(width, other.width) || !similar(height, other.height)) {
+                return MAX_DISTANCE + 1;
+            }
+            return PerceptualHash.distance(hash, other.hash);
+        }
+
+        private static boolean similar(int a, int b) {
+            return Math.abs(a - b) * 100 <= Math.max(a, b) * SIZE_TOLERANCE_PERCENT;
+        }
+    }
+
+    /** A running request that near-duplicates can follow. */
+    public final class InFlight {
+        private final RequestScheduler.Handle owner;
+        private final ImageKey image;
+        private final String promptKey;
+        private final StringBuilder text = new StringBuilder();
+        private final List<Listener> listeners = new ArrayList<>();
+        private boolean done;
+
+        private InFlight(RequestScheduler.Handle owner, ImageKey image, String promptKey) {
+            this.owner = owner;
+            this.image = image;
+            this.promptKey = promptKey;
+        }
+
+        public void append(String delta) {
+            List<Listener> snapshot;
+            synchronized (AnswerCache.this) {
+                text.append(delta);
+                snapshot = new ArrayList<>(listeners);
+            }
+            for (Listener listener : snapshot) {
+                listener.onDelta(delta);
+            }
+        }
+
+        /** Stores the answer and hands it to every follower. */
+        public void complete(String answer) {
+            List<Listener> snapshot;
+            synchronized (AnswerCache.this) {
+                put(image, promptKey, answer);
+                done = true;
+                inFlight.remove(this);
+                snapshot = new ArrayList<>(listeners);
+            }
+            for (Listener listener : snapshot) {
+                listener.onComplete(answer);
+            }
+        }
+
+        public void fail() {
+            List<Listener> snapshot;
+            synchronized (AnswerCache.this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                inFlight.remove(this);
+                snapshot = new ArrayList<>(listeners);
+            }
+            for (Listener listener : snapshot) {
+                listener.onFailed();
+            }
+        }
+    }
+
+    private static final class DiskEntry {
+        final ImageKey image;
+        final String promptKey;
+        final File file;
+
+        DiskEntry(ImageKey image, String promptKey, File file) {
+            this.image = image;
+            this.promptKey = promptKey;
+            this.file = file;
+        }
+    }
+
+    private static final class MemoryEntry {
+        final ImageKey image;
+        final String answer;
+
+        MemoryEntry(ImageKey image, String answer) {
+            this.image = image;
+            this.answer = answer;
+        }
+    }
+
+    private final File dir;
+    // By entry name, access ordered, the eldest entry is evicted first
+    private final LinkedHashMap<String, MemoryEntry> memory = new LinkedHashMap<String, MemoryEntry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MemoryEntry> eldest) {
+            return size() > MEMORY_ENTRIES;
+        }
+    };
+    // Disk index, oldest first
+    private List<DiskEntry> disk;
+    private final List<InFlight> inFlight = new ArrayList<>();
+
+    public AnswerCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Digest of the request parameters besides the image; only entries with
+     * an equal key can match.
+     */
+    public static String promptKey(String... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : parts) {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            byte[] sha = digest.digest();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                sb.append(String.format(Locale.US, "%02x", sha[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the cached answer of a near-duplicate image, or null.
+     */
+    public synchronized String get(ImageKey image, String promptKey) {
+        String closest = null;
+        int closestDistance = MAX_DISTANCE + 1;
+        for (Map.Entry<String, MemoryEntry> entry : memory.entrySet()) {
+            if (!entry.getKey().endsWith(promptKey)) {
+                continue;
+            }
+            int distance = entry.getValue().image.distance(image);
+            if (distance < closestDistance) {
+                closest = entry.getKey();
+                closestDistance = distance;
+            }
+        }
+        if (closest != null) {
+            // Lookup through get() so the hit counts as a use
+            return memory.get(closest).answer;
+        }
+
+        // File names only carry the coarse hash, confirm candidates with the stored fine hash
+        List<DiskEntry> candidates = new ArrayList<>();
+        for (DiskEntry entry : diskIndex()) {
+            if (entry.promptKey.equals(promptKey) && entry.image.layoutDistance(image) <= MAX_DISTANCE) {
+                candidates.add(entry);
+            }
+        }
+        Collections.sort(candidates, (a, b) ->
+                Integer.compare(a.image.layoutDistance(image), b.image.layoutDistance(image)));
+        for (DiskEntry candidate : candidates) {
+            MemoryEntry cached;
+            try {
+                cached = readEntry(candidate);
+            } catch (IOException e) {
+                Log.w(TAG, "Dropping unreadable cache entry " + candidate.file.getName(), e);
+                disk.remove(candidate);
+                candidate.file.delete();
+                continue;
+            }
+            int distance = cached.image.distance(image);
+            if (distance > MAX_DISTANCE) {
+                continue;
+            }
+            // Keep recently used entries away from eviction
+            candidate.file.setLastModified(System.currentTimeMillis());
+            disk.remove(candidate);
+            disk.add(candidate);
+            memory.put(candidate.file.getName(), cached);
+            Log.d(TAG, "Disk hit at distance " + distance);
+            return cached.answer;
+        }
+        return null;
+    }
+
+    public synchronized void put(ImageKey image, String promptKey, String answer) {
+        String name = entryName(image, promptKey);
+        memory.put(name, new MemoryEntry(image, answer));
+
+        List<DiskEntry> index = diskIndex();
+        File file = new File(dir, name);
+        try {
+            dir.mkdirs();
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write((toHex(image.detail) + "\n" + answer).getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write cache entry", e);
+            return;
+        }
+        for (Iterator<DiskEntry> it = index.iterator(); it.hasNext(); ) {
+            if (it.next().file.getName().equals(name)) {
+                it.remove();
+            }
+        }
+        index.add(new DiskEntry(image, promptKey, file));
+        trimDisk();
+    }
+
+    /**
+     * Follows the closest running near-duplicate request and returns null,
+     * or, when none is running, registers one for {@code owner} and returns
+     * it. The caller must then {@link InFlight#complete} or
+     * {@link InFlight#fail} it. A null listener never joins (forced refresh).
+     * Requests whose owner was cancelled are unregistered here rather than
+     * joined, since they will never deliver an answer.
+     */
+    public synchronized InFlight joinOrBegin(RequestScheduler.Handle owner, ImageKey image, String promptKey,
+                                             Listener listener) {
+        InFlight closest = null;
+        int closestDistance = MAX_DISTANCE + 1;
+        for (Iterator<InFlight> it = inFlight.iterator(); it.hasNext(); ) {
+            InFlight flight = it.next();
+            if (flight.owner.isCancelled()) {
+                // Its followers still hear fail() from the owner's thread
+                it.remove();
+                continue;
+            }
+            int distance = flight.image.distance(image);
+            if (flight.promptKey.equals(promptKey) && distance < closestDistance) {
+                closest = flight;
+                closestDistance = distance;
+            }
+        }
+        if (listener != null && closest != null) {
+            if (closest.text.length() > 0) {
+                listener.onDelta(closest.text.toString());
+            }
+            closest.listeners.add(listener);
+            Log.d(TAG, "Joined running request at distance " + closestDistance);
+            return null;
+        }
+        InFlight flight = new InFlight(owner, image, promptKey);
+        inFlight.add(flight);
+        return flight;
+    }
+
+    /** Stops following; the request itself keeps running for its owner. */
+    public synchronized void leave(Listener listener) {
+        for (InFlight flight : inFlight) {
+            flight.listeners.remove(listener);
+        }
+    }
+
+    private List<DiskEntry> diskIndex() {
+        if (disk != null) {
+            return disk;
+        }
+        disk = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return disk;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            String name = file.getName();
+            ImageKey image = parseImageKey(name);
+            if (image == null) {
+                // Unknown or older naming scheme
+                file.delete();
+                continue;
+            }
+            disk.add(new DiskEntry(image, name.substring(name.lastIndexOf('_') + 1), file));
+        }
+        trimDisk();
+        return disk;
+    }
+
+    private void trimDisk() {
+        long bytes = 0;
+        for (DiskEntry entry : disk) {
+            bytes += entry.file.length();
+        }
+        while (!disk.isEmpty() && (disk.size() > DISK_ENTRIES || bytes > DISK_BYTES)) {
+            DiskEntry eldest = disk.remove(0);
+            bytes -= eldest.file.length();
+            eldest.file.delete();
+        }
+    }
+
+    // The detail tag keeps same-layout questions in separate files
+    private static String entryName(ImageKey image, String promptKey) {
+        return String.format(Locale.US, "%016x_%dx%d_%08x_%s", image.hash, image.width, image.height,
+                Arrays.hashCode(image.detail), promptKey);
+    }
+
+    /**
+     * Parses the coarse image part of an entry name, or returns null if
+     * malformed. The fine hash is only in the file.
+     */
+    private static ImageKey parseImageKey(String name) {
+        String[] parts = name.split("_");
+        if (parts.length != 4 || parts[0].length() != 16) {
+            return null;
+        }
+        int x = parts[1].indexOf('x');
+        try {
+            return new ImageKey(parseHexLong(parts[0]), null, Integer.parseInt(parts[1].substring(0, x)),
+                    Integer.parseInt(parts[1].substring(x + 1)));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static MemoryEntry readEntry(DiskEntry entry) throws IOException {
+        String content = readFile(entry.file);
+        int newline = content.indexOf('\n');
+        long[] detail = newline < 0 ? null : parseHex(content.substring(0, newline));
+        if (detail == null) {
+            throw new IOException("Malformed cache entry");
+        }
+        ImageKey image = new ImageKey(entry.image.hash, detail, entry.image.width, entry.image.height);
+        return new MemoryEntry(image, content.substring(newline + 1));
+    }
+
+    private static String toHex(long[] values) {
+        StringBuilder sb = new StringBuilder(values.length * 16);
+        for (long value : values) {
+            sb.append(String.format(Locale.US, "%016x", value));
+        }
+        return sb.toString();
+    }
+
+    // Returns null unless it is a whole fine hash
+    private static long[] parseHex(String hex) {
+        long[] values = new long[(PerceptualHash.FINE_BITS + 63) / 64];
+        if (hex.length() != values.length * 16) {
+            return null;
+        }
+        try {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = parseHexLong(hex.substring(i * 16, i * 16 + 16));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return values;
+    }
+
+    private static long parseHexLong(String hex) {
+        // Long.parseUnsignedLong needs API 26
+        return Long.parseLong(hex.substring(0, 8), 16) << 32 | Long.parseLong(hex.substring(8, 16), 16);
+    }
+
+    private static String readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        try (InputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int n = in.read(bytes, offset, bytes.length - offset);
+                if (n < 0) {
+                    throw new IOException("Truncated cache entry");
+                }
+                offset += n;
+            }
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,477 @@
+package com.aisouti;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+
+/**
+ * Runs one chat completion to its final answer on top of {@link ApiClient}:
+ * streams deltas when the endpoint supports it, falls back to a plain
+ * request when it rejects the stream flag, fails over between endpoints
+ * and optionally hedges.
+ *
+ * Endpoints are tried in the order of {@link EndpointPool#rank}; when every
+ * running attempt failed before producing content, the next endpoint is
+ * tried, up to {@link #MAX_ATTEMPTS} attempts.
+ *
+ * Hedging: when the first attempt has produced no content after an
+ * adaptive threshold (the observed p90 time to first token), a duplicate is
+ * fired, possibly at a secondary model. The first attempt to produce
+ * content wins and the others are cancelled. Endpoints that do not stream
+ * produce no content before the whole answer, so they are never hedged.
+ */
+public class AnswerClient {
+    private static final String TAG = "AnswerClient";
+
+    // Endpoints that rejected "stream": true during this process
+    private static final Set<String> NON_STREAMING_ENDPOINTS = ConcurrentHashMap.newKeySet();
+    private static final int MAX_ATTEMPTS = 3;
+
+    public interface BodyFactory {
+        ChatRequestWriter create(String model, boolean stream);
+    }
+
+    public interface Listener {
+        /** Content of the winning attempt, in order, on a network thread. */
+        void onDelta(String delta);
+
+        /** The first successful response headers of any attempt arrived. */
+        default void onResponseStarted() {}
+
+        /** Token usage reported by the winning attempt, when the endpoint sends it. */
+        default void onUsage(int promptTokens, int completionTokens) {}
+    }
+
+    /** Where one attempt is sent. */
+    public static final class Target {
+        public final String baseUrl;
+        public final String apiKey;
+        public final String model;
+
+        public Target(String baseUrl, String apiKey, String model) {
+            this.baseUrl = baseUrl;
+            this.apiKey = apiKey;
+            this.model = model;
+        }
+    }
+
+    /** The endpoint answered with a status other than 200. */
+    public static class HttpException extends IOException {
+        public final int code;
+        public final String body;
+
+        public HttpException(int code, String body) {
+            super("HTTP " + code);
+            this.code = code;
+            this.body = body;
+        }
+    }
+
+    private final ApiClient apiClient;
+    private final HedgeStats hedgeStats;
+    private final EndpointPool endpointPool = new EndpointPool();
+
+    public AnswerClient(ApiClient apiClient) {
+        this(apiClient, new HedgeStats());
+    }
+
+    AnswerClient(ApiClient apiClient, HedgeStats hedgeStats) {
+        this.apiClient = apiClient;
+        this.hedgeStats = hedgeStats;
+    }
+
+    public HedgeStats getHedgeStats() {
+        return hedgeStats;
+    }
+
+    public EndpointPool getEndpointPool() {
+        return endpointPool;
+    }
+
+    /**
+     * Blocks until the answer is complete. Every call is attached to
+     * {@code handle}, so cancelling it aborts all attempts.
+     *
+     * @param targets    configured endpoints, in any order
+     * @param hedgeModel model of the duplicate request ("" for the same
+     *                   model), or null to not hedge. The duplicate goes to
+     *                   the next best endpoint when there is one.
+     */
+    public String complete(RequestScheduler.Handle handle, List<Target> targets, String hedgeModel,
+                           BodyFactory body, Listener listener) throws IOException {
+        return complete(handle, targets, hedgeModel, hedgeStats, body, listener);
+    }
+
+    /**
+     * Like {@link #complete} for short answers (a few tokens), which never
+     * hedge. Their timing says nothing about full answers, so they are left
+     * out of the hedging statistics.
+     */
+    public String completeQuick(RequestScheduler.Handle handle, List<Target> targets, BodyFactory body,
+                                Listener listener) throws IOException {
+        return complete(handle, targets, null, null, body, listener);
+    }
+
+    private String complete(RequestScheduler.Handle handle, List<Target> targets, String hedgeModel,
+                            HedgeStats stats, BodyFactory body, Listener listener) throws IOException {
+        Exchange exchange = new Exchange(handle, body, listener, endpointPool.rank(targets));
+        long threshold = hedgeStats.thresholdMs();
+        Attempt first;
+        Attempt second = null;
+        synchronized (exchange) {
+            first = exchange.start(exchange.pending.poll(), false);
+            try {
+                while (!exchange.done) {
+                    if (hedgeModel != null && second == null && exchange.winner == null
+                            && !NON_STREAMING_ENDPOINTS.contains(first.target.baseUrl)) {
+                        long wait = exchange.startTime + threshold - SystemClock.elapsedRealtime();
+                        if (wait <= 0) {
+                            Target next = exchange.pending.isEmpty() ? first.target : exchange.pending.poll();
+                            Target hedge = new Target(next.baseUrl, next.apiKey,
+                                    hedgeModel.isEmpty() ? next.model : hedgeModel);
+                            Log.d(TAG, "No first token after " + threshold + "ms, hedging with "
+                                    + hedge.model + " at " + hedge.baseUrl);
+                            second = exchange.start(hedge, true);
+                            continue;
+                        }
+                        exchange.wait(wait);
+                    } else {
+                        exchange.wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                exchange.cancelAll();
+                throw new InterruptedIOException("Answer request interrupted");
+            }
+        }
+        if (stats != null) {
+            stats.record(first, second, exchange.winner);
+        }
+        if (exchange.error != null) {
+            throw exchange.error;
+        }
+        return exchange.answer;
+    }
+
+    // State shared by the attempts of one answer, guarded by its own monitor
+    private final class Exchange {
+        final RequestScheduler.Handle handle;
+        final BodyFactory body;
+        final Listener listener;
+        final long startTime = SystemClock.elapsedRealtime();
+        final List<Attempt> attempts = new ArrayList<>();
+        // Ranked endpoints not tried yet
+        final ArrayDeque<Target> pending;
+        Attempt winner;
+        int running;
+        boolean done;
+        String answer;
+        IOException error;
+
+        Exchange(RequestScheduler.Handle handle, BodyFactory body, Listener listener, List<Target> ranked) {
+            this.handle = handle;
+            this.body = body;
+            this.listener = listener;
+            this.pending = new ArrayDeque<>(ranked);
+        }
+
+        Attempt start(Target target, boolean hedged) {
+            Attempt attempt = new Attempt(this, target, hedged);
+            attempts.add(attempt);
+            running++;
+            attempt.enqueue();
+            return attempt;
+        }
+
+        // The first attempt with content wins; returns whether it is this one
+        synchronized boolean claim(Attempt attempt) {
+            if (winner == null && !done) {
+                winner = attempt;
+                long now = SystemClock.elapsedRealtime();
+                attempt.firstTokenMs = now - startTime;
+                endpointPool.recordSuccess(attempt.target, now - attempt.startTime);
+                for (Attempt other : attempts) {
+                    if (other != attempt) {
+                        other.call.cancel();
+                    }
+                }
+                Log.d(TAG, (attempt.hedged ? "Hedge" : "Primary") + " attempt won, first token after "
+                        + attempt.firstTokenMs + "ms");
+                notifyAll();
+            }
+            return winner == attempt;
+        }
+
+        synchronized boolean isWinner(Attempt attempt) {
+            return winner == attempt;
+        }
+
+        synchronized void finish(Attempt attempt, String result, IOException failure) {
+            running--;
+            if (done) {
+                return;
+            }
+            if (result != null && (winner == null || winner == attempt)) {
+                winner = attempt;
+                answer = result;
+                done = true;
+            } else if (winner == null && running == 0 && !handle.isCancelled()
+                    && !pending.isEmpty() && attempts.size() < MAX_ATTEMPTS) {
+                Target next = pending.poll();
+                Log.w(TAG, "Failing over from " + attempt.target.baseUrl + " to " + next.baseUrl
+                        + ": " + (failure != null ? failure.getMessage() : "empty answer"));
+                start(next, false);
+            } else if (winner == attempt || running == 0) {
+                // The winner broke mid-stream, or every attempt failed
+                error = failure != null ? failure : new IOException("Empty answer");
+                done = true;
+            }
+            if (done) {
+                notifyAll();
+            }
+        }
+
+        void cancelAll() {
+            for (Attempt attempt : attempts) {
+                attempt.call.cancel();
+            }
+        }
+    }
+
+    private final class Attempt implements Callback {
+        final Exchange exchange;
+        final Target target;
+        final boolean hedged;
+        volatile boolean stream;
+        volatile Call call;
+        final long startTime = SystemClock.elapsedRealtime();
+        // Since the start of the exchange, for the hedging statistics
+        long firstTokenMs = -1;
+
+        Attempt(Exchange exchange, Target target, boolean hedged) {
+            this.exchange = exchange;
+            this.target = target;
+            this.hedged = hedged;
+        }
+
+        void enqueue() {
+            stream = !NON_STREAMING_ENDPOINTS.contains(target.baseUrl);
+            call = newCall(stream);
+            call.enqueue(this);
+        }
+
+        private Call newCall(boolean stream) {
+            Call call = apiClient.newChatCall(target.baseUrl, target.apiKey,
+                    exchange.body.create(target.model, stream));
+            exchange.handle.attach(call);
+            return call;
+        }
+
+        @Override
+        public void onFailure(@NonNull Call call, @NonNull IOException e) {
+            if (!call.isCanceled()) {
+                endpointPool.recordFailure(target, 0, null);
+            }
+            exchange.finish(this, null, e);
+        }
+
+        @Override
+        public void onResponse(@NonNull Call call, @NonNull Response response) {
+            try {
+                exchange.finish(this, read(response), null);
+            } catch (HttpException e) {
+                // Recorded with its headers in read()
+                exchange.finish(this, null, e);
+            } catch (IOException e) {
+                if (!this.call.isCanceled()) {
+                    endpointPool.recordFailure(target, 0, null);
+                }
+                exchange.finish(this, null, e);
+            } catch (JSONException e) {
+                exchange.finish(this, null, new IOException("Malformed response: " + e.getMessage(), e));
+            }
+        }
+
+        private String read(Response response) throws IOException, JSONException {
+            try {
+                if (stream && response.code() == 400) {
+                    // Some compatible endpoints reject the stream flag, retry with a plain request
+                    Log.w(TAG, "Streaming request rejected by " + target.baseUrl + ", retrying without stream");
+                    response.close();
+                    stream = false;
+                    call = newCall(false);
+                    response = call.execute();
+                    if (response.code() == 200) {
+                        NON_STREAMING_ENDPOINTS.add(target.baseUrl);
+                    }
+                }
+
+                if (response.code() != 200) {
+                    endpointPool.recordFailure(target, response.code(), response.headers());
+                    throw new HttpException(response.code(), response.body().string());
+                }
+                endpointPool.observeRateLimit(target, response.headers());
+                exchange.listener.onResponseStarted();
+
+                String contentType = response.header("Content-Type");
+                if (stream && contentType != null && contentType.startsWith("text/event-stream")) {
+                    return readStream(response);
+                }
+                JSONObject json = new JSONObject(response.body().string());
+                String answer = json.getJSONArray("choices")
+                        .getJSONObject(0)
+                        .getJSONObject("message")
+                        .getString("content");
+                if (!exchange.claim(this)) {
+                    return null;
+                }
+                reportUsage(json);
+                return answer;
+            } finally {
+                response.close();
+            }
+        }
+
+        private String readStream(Response response) throws IOException, JSONException {
+            StringBuilder answer = new StringBuilder();
+            try (SseParser parser = new SseParser(response.body().byteStream())) {
+                String data;
+                while ((data = parser.nextEvent()) != null) {
+                    if (SseParser.DONE.equals(data)) {
+                        break;
+                    }
+                    if (data.contains("\"usage\"") && exchange.isWinner(this)) {
+                        // Some endpoints report usage on the last chunk, which has no content
+                        reportUsage(new JSONObject(data));
+                    }
+                    String delta = SseParser.extractDelta(data);
+                    if (delta.isEmpty()) {
+                        continue;
+                    }
+                    if (!exchange.claim(this)) {
+                        // Another attempt won
+                        return null;
+                    }
+                    answer.append(delta);
+                    exchange.listener.onDelta(delta);
+                }
+            }
+            return answer.length() > 0 ? answer.toString() : null;
+        }
+
+        private void reportUsage(JSONObject json) {
+            JSONObject usage = json.optJSONObject("usage");
+            if (usage != null && usage.has("prompt_tokens")) {
+                exchange.listener.onUsage(usage.optInt("prompt_tokens"), usage.optInt("completion_tokens"));
+            }
+        }
+    }
+
+    /**
+     * Time-to-first-token samples that drive the hedging threshold, plus
+     * counters of how often hedging fired and what it saved.
+     */
+    public static final class HedgeStats {
+        private static final int SAMPLES = 64;
+        private static final int MIN_SAMPLES = 10;
+        static final long DEFAULT_THRESHOLD_MS = 6000;
+        private static final long MIN_THRESHOLD_MS = 1000;
+        private static final long MAX_THRESHOLD_MS = 30_000;
+
+        private final long defaultThresholdMs;
+        private final long[] samples = new long[SAMPLES];
+        private int sampleCount;
+        private int nextSample;
+        private int requests;
+        private int hedgesFired;
+        private int hedgeWins;
+        private long savedMs;
+
+        public HedgeStats() {
+            this(DEFAULT_THRESHOLD_MS);
+        }
+
+        HedgeStats(long defaultThresholdMs) {
+            this.defaultThresholdMs = defaultThresholdMs;
+        }
+
+        /** p90 of recent first-token times, the point where waiting longer is unusual. */
+        public synchronized long thresholdMs() {
+            if (sampleCount < MIN_SAMPLES) {
+                return defaultThresholdMs;
+            }
+            long[] sorted = Arrays.copyOf(samples, sampleCount);
+            Arrays.sort(sorted);
+            long p90 = sorted[(int) (sorted.length * 0.9)];
+            return Math.max(MIN_THRESHOLD_MS, Math.min(MAX_THRESHOLD_MS, p90));
+        }
+
+        synchronized void record(Attempt first, Attempt second, Attempt winner) {
+            requests++;
+            if (second != null) {
+                hedgesFired++;
+            }
+            if (winner == null || !winner.stream) {
+                // A plain response has no first token, only the whole answer
+                return;
+            }
+            if (winner == first) {
+                addSample(first.firstTokenMs);
+            } else if (winner == second) {
+                // The primary had no token yet when the hedge won, which is a lower bound for its sample
+                hedgeWins++;
+                savedMs += Math.max(0, expectedSlowTtfb(winner.firstTokenMs) - winner.firstTokenMs);
+                addSample(winner.firstTokenMs);
+            }
+        }
+
+        // Mean of the recorded first-token times beyond a point, estimating how long the primary would have taken
+        private long expectedSlowTtfb(long beyond) {
+            long sum = 0;
+            int count = 0;
+            for (int i = 0; i < sampleCount; i++) {
+                if (samples[i] > beyond) {
+                    sum += samples[i];
+                    count++;
+                }
+            }
+            return count > 0 ? sum / count : beyond;
+        }
+
+        private void addSample(long ms) {
+            if (ms < 0) {
+                return;
+            }
+            samples[nextSample] = ms;
+            nextSample = (nextSample + 1) % SAMPLES;
+            sampleCount = Math.min(sampleCount + 1, SAMPLES);
+        }
+
+        synchronized int requestCount() {
+            return requests;
+        }
+
+        public synchronized String describe() {
+            return String.format(Locale.US, "对冲阈值 %d ms · 请求 %d 次 · 触发对冲 %d 次 · 对冲胜出 %d 次 · 估计共节省 %d ms",
+                    thresholdMs(), requests, hedgesFired, hedgeWins, savedMs);
+        }
+    }
+}
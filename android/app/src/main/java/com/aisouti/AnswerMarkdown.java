@@ -0,0 +1,435 @@
+package com.aisouti;
+
+import android.graphics.Typeface;
+import android.text.Layout;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.AlignmentSpan;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.QuoteSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts the Markdown subset that models answer in into styled text:
+ * headings, emphasis, inline and fenced code, lists, quotes, rules, and
+ * TeX math ({@code $..$}, {@code \(..\)}, {@code $$..$$}, {@code \[..\]}),
+ * which is rewritten to Unicode (fractions, roots, super- and subscripts,
+ * Greek letters and operators) since there is no math layout engine.
+ *
+ * Input may be cut off mid-stream; unmatched markers are kept as plain
+ * text, so the last block renders sensibly until the rest arrives. Pure
+ * functions, safe on any thread.
+ */
+public final class AnswerMarkdown {
+    private static final int CODE_BACKGROUND = 0x14000000;
+
+    private static final Map<String, String> SYMBOLS = new HashMap<>();
+    private static final String SUPERSCRIPT_FROM = "0123456789+-=()nix";
+    private static final String SUPERSCRIPT_TO = "⁰¹²³⁴⁵⁶⁷⁸⁹⁺⁻⁼⁽⁾ⁿⁱˣ";
+    private static final String SUBSCRIPT_FROM = "0123456789+-=()aeoxn";
+    private static final String SUBSCRIPT_TO = "₀₁₂₃₄₅₆₇₈₉₊₋₌₍₎ₐₑₒₓₙ";
+
+    static {
+        String[] pairs = {
+            "alpha", "α", "beta", "β", "gamma", "γ", "delta", "δ", "epsilon", "ε", "varepsilon", "ε",
+            "zeta", "ζ", "eta", "η", "theta", "θ", "lambda", "λ", "mu", "μ", "nu", "ν", "xi", "ξ",
+            "pi", "π", "rho", "ρ", "sigma", "σ", "tau", "τ", "phi", "φ", "varphi", "φ", "chi", "χ",
+            "psi", "ψ", "omega", "ω", "Gamma", "Γ", "Delta", "Δ", "Theta", "Θ", "Lambda", "Λ",
+            "Pi", "Π", "Sigma", "Σ", "Phi", "Φ", "Omega", "Ω",
+            "times", "×", "div", "÷", "pm", "±", "mp", "∓", "cdot", "·", "ast", "∗",
+            "le", "≤", "leq", "≤", "ge", "≥", "geq", "≥", "ne", "≠", "neq", "≠", "approx", "≈",
+            "equiv", "≡", "sim", "∼", "propto", "∝", "infty", "∞", "partial", "∂", "nabla", "∇",
+            "sum", "∑", "prod", "∏", "int", "∫", "oint", "∮", "lim", "lim", "log", "log", "ln", "ln",
+            "sin", "sin", "cos", "cos", "tan", "tan", "cot", "cot", "sec", "sec", "csc", "csc",
+            "in", "∈", "notin", "∉", "subset", "⊂", "subseteq", "⊆", "supset", "⊃", "cup", "∪",
+            "cap", "∩", "emptyset", "∅", "varnothing", "∅", "forall", "∀", "exists", "∃", "neg", "¬",
+            "land", "∧", "lor", "∨", "to", "→", "rightarrow", "→", "leftarrow", "←", "Rightarrow", "⇒",
+            "Leftarrow", "⇐", "leftrightarrow", "↔", "Leftrightarrow", "⇔", "implies", "⇒", "iff", "⇔",
+            "therefore", "∴", "because", "∵", "angle", "∠", "triangle", "△", "perp", "⊥",
+            "parallel", "∥", "circ", "°", "degree", "°", "cdots", "⋯", "ldots", "…", "dots", "…",
+            "prime", "′", "mid", "∣", "quad", " ", "qquad", "  ", ",", " ", ";", " ", ":", " ",
+            "!", "", " ", " ", "{", "{", "}", "}", "%", "%", "$", "$", "_", "_", "&", "&",
+            "left", "", "right", "", "displaystyle", "", "limits", "", "big", "", "Big", "",
+        };
+        for (int i = 0; i < pairs.length; i += 2) {
+            SYMBOLS.put(pairs[i], pairs[i + 1]);
+        }
+    }
+
+    private AnswerMarkdown() {}
+
+    /**
+     * Splits text into blocks at blank lines, keeping fenced code and
+     * display math together; headings and rules are blocks of their own.
+     * Each block becomes one paragraph view.
+     */
+    public static List<String> splitBlocks(String text) {
+        List<String> blocks = new ArrayList<>();
+        StringBuilder block = new StringBuilder();
+        String fence = null;
+        for (String line : text.split("\n", -1)) {
+            String trimmed = line.trim();
+            if (fence != null) {
+                block.append(line).append('\n');
+                if (trimmed.endsWith(fence)) {
+                    fence = null;
+                    flush(blocks, block);
+                }
+                continue;
+            }
+            if (trimmed.startsWith("```") || trimmed.equals("$$") || trimmed.equals("\\[")
+                    || (trimmed.startsWith("$$") && !trimmed.substring(2).contains("$$"))) {
+                flush(blocks, block);
+                fence = trimmed.startsWith("```") ? "```" : trimmed.startsWith("$$") ? "$$" : "\\]";
+                block.append(line).append('\n');
+                continue;
+            }
+            if (trimmed.isEmpty()) {
+                flush(blocks, block);
+            } else if (isHeading(trimmed) || isRule(trimmed)) {
+                flush(blocks, block);
+                block.append(line);
+                flush(blocks, block);
+            } else {
+                block.append(line).append('\n');
+            }
+        }
+        flush(blocks, block);
+        return blocks;
+    }
+
+    private static void flush(List<String> blocks, StringBuilder block) {
+        int end = block.length();
+        while (end > 0 && block.charAt(end - 1) == '\n') {
+            end--;
+        }
+        if (end > 0) {
+            blocks.add(block.substring(0, end));
+        }
+        block.setLength(0);
+    }
+
+    /** Renders a whole answer as one text, for short one-off views. */
+    public static CharSequence renderAll(String text) {
+        SpannableStringBuilder out = new SpannableStringBuilder();
+        for (String block : splitBlocks(text)) {
+            if (out.length() > 0) {
+                out.append("\n\n");
+            }
+            out.append(render(block));
+        }
+        return out;
+    }
+
+    /** Renders one block from {@link #splitBlocks}. */
+    public static CharSequence render(String block) {
+        String trimmed = block.trim();
+        SpannableStringBuilder out = new SpannableStringBuilder();
+        if (trimmed.startsWith("```")) {
+            int firstLine = trimmed.indexOf('\n');
+            String code = firstLine < 0 ? "" : trimmed.substring(firstLine + 1);
+            if (code.endsWith("```")) {
+                code = code.substring(0, code.length() - 3);
+            }
+            out.append(code.replaceAll("\\n+$", ""));
+            out.setSpan(new TypefaceSpan("monospace"), 0, out.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            out.setSpan(new BackgroundColorSpan(CODE_BACKGROUND), 0, out.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            return out;
+        }
+        String display = displayMath(trimmed);
+        if (display != null) {
+            out.append(latex(display));
+            out.setSpan(new TypefaceSpan("serif"), 0, out.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            out.setSpan(new RelativeSizeSpan(1.1f), 0, out.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            out.setSpan(new AlignmentSpan.Standard(Layout.Alignment.ALIGN_CENTER), 0, out.length(),
+                    Spanned.SPAN_PARAGRAPH);
+            return out;
+        }
+        if (isRule(trimmed)) {
+            return "──────────";
+        }
+        if (isHeading(trimmed)) {
+            int level = 0;
+            while (level < trimmed.length() && trimmed.charAt(level) == '#') {
+                level++;
+            }
+            appendInline(out, trimmed.substring(level).trim());
+            out.setSpan(new StyleSpan(Typeface.BOLD), 0, out.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            out.setSpan(new RelativeSizeSpan(level <= 1 ? 1.3f : level == 2 ? 1.2f : 1.1f), 0, out.length(),
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            return out;
+        }
+
+        String[] lines = block.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            if (i > 0) {
+                out.append('\n');
+            }
+            String line = lines[i];
+            String content = line.trim();
+            int lineStart = out.length();
+            if (content.startsWith(">")) {
+                appendInline(out, content.substring(1).trim());
+                out.setSpan(new QuoteSpan(), lineStart, out.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                continue;
+            }
+            // Nested list items keep their indent
+            int indent = line.length() - line.replaceAll("^\\s+", "").length();
+            for (int j = 0; j < Math.min(indent / 2, 4); j++) {
+                out.append("    ");
+            }
+            if (content.length() > 1 && "-*+".indexOf(content.charAt(0)) >= 0 && content.charAt(1) == ' ') {
+                out.append("• ");
+                content = content.substring(2).trim();
+            }
+            appendInline(out, content);
+        }
+        return out;
+    }
+
+    // $$..$$ or \[..\] spanning the whole block, returns the TeX inside or null
+    private static String displayMath(String block) {
+        if (block.startsWith("$$") && block.endsWith("$$") && block.length() >= 4) {
+            return block.substring(2, block.length() - 2).trim();
+        }
+        if (block.startsWith("\\[") && block.endsWith("\\]") && block.length() >= 4) {
+            return block.substring(2, block.length() - 2).trim();
+        }
+        return null;
+    }
+
+    private static boolean isHeading(String line) {
+        int level = 0;
+        while (level < line.length() && line.charAt(level) == '#') {
+            level++;
+        }
+        return level >= 1 && level <= 6 && line.length() > level && line.charAt(level) == ' ';
+    }
+
+    private static boolean isRule(String line) {
+        return line.length() >= 3 && (line.matches("-{3,}") || line.matches("\\*{3,}") || line.matches("_{3,}"));
+    }
+
+    // Emphasis, code and inline math; an opener without its closer stays literal
+    private static void appendInline(SpannableStringBuilder out, String text) {
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length() && text.charAt(i + 1) == '(') {
+                int end = text.indexOf("\\)", i + 2);
+                if (end > 0) {
+                    appendMath(out, text.substring(i + 2, end));
+                    i = end + 2;
+                    continue;
+                }
+            } else if (c == '$') {
+                boolean display = i + 1 < text.length() && text.charAt(i + 1) == '$';
+                String closer = display ? "$$" : "$";
+                int start = i + closer.length();
+                int end = text.indexOf(closer, start);
+                if (end > start) {
+                    appendMath(out, text.substring(start, end));
+                    i = end + closer.length();
+                    continue;
+                }
+            } else if (c == '`') {
+                int end = text.indexOf('`', i + 1);
+                if (end > i + 1) {
+                    int start = out.length();
+                    out.append(text, i + 1, end);
+                    out.setSpan(new TypefaceSpan("monospace"), start, out.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    out.setSpan(new BackgroundColorSpan(CODE_BACKGROUND), start, out.length(),
+                            Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    i = end + 1;
+                    continue;
+                }
+            } else if ((c == '*' || c == '_') && i + 1 < text.length()) {
+                boolean strong = text.charAt(i + 1) == c;
+                String marker = strong ? text.substring(i, i + 2) : String.valueOf(c);
+                int start = i + marker.length();
+                int end = text.indexOf(marker, start);
+                // No emphasis on "a * b", 2*3*4 or snake_case
+                boolean opens = start < text.length() && !Character.isWhitespace(text.charAt(start))
+                        && (strong || i == 0 || !isAsciiLetterOrDigit(text.charAt(i - 1)));
+                if (opens && end > start && !Character.isWhitespace(text.charAt(end - 1))) {
+                    int spanStart = out.length();
+                    appendInline(out, text.substring(start, end));
+                    out.setSpan(new StyleSpan(strong ? Typeface.BOLD : Typeface.ITALIC), spanStart, out.length(),
+                            Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    i = end + marker.length();
+                    continue;
+                }
+            }
+            out.append(c);
+            i++;
+        }
+    }
+
+    private static boolean isAsciiLetterOrDigit(char c) {
+        return c < 128 && Character.isLetterOrDigit(c);
+    }
+
+    private static void appendMath(SpannableStringBuilder out, String tex) {
+        int start = out.length();
+        out.append(latex(tex));
+        out.setSpan(new TypefaceSpan("serif"), start, out.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+
+    /** Rewrites TeX math to its closest plain Unicode reading. */
+    static String latex(String tex) {
+        StringBuilder out = new StringBuilder();
+        new TexReader(tex).readAll(out);
+        return out.toString().replaceAll(" {2,}", " ").trim();
+    }
+
+    private static final class TexReader {
+        private final String s;
+        private int pos;
+
+        TexReader(String s) {
+            this.s = s;
+        }
+
+        void readAll(StringBuilder out) {
+            while (pos < s.length()) {
+                readAtom(out);
+            }
+        }
+
+        // One group, command or character
+        private void readAtom(StringBuilder out) {
+            char c = s.charAt(pos);
+            if (c == '{') {
+                out.append(readGroup());
+            } else if (c == '}') {
+                pos++;
+            } else if (c == '\\') {
+                readCommand(out);
+            } else if (c == '^' || c == '_') {
+                pos++;
+                String arg = pos < s.length() ? readArgument() : "";
+                out.append(script(arg, c == '^'));
+            } else if (c == '&') {
+                pos++;
+            } else {
+                out.append(c);
+                pos++;
+            }
+        }
+
+        private String readGroup() {
+            // At '{'
+            pos++;
+            StringBuilder out = new StringBuilder();
+            while (pos < s.length() && s.charAt(pos) != '}') {
+                readAtom(out);
+            }
+            pos++;
+            return out.toString();
+        }
+
+        private String readArgument() {
+            while (pos < s.length() && s.charAt(pos) == ' ') {
+                pos++;
+            }
+            if (pos >= s.length()) {
+                return "";
+            }
+            StringBuilder out = new StringBuilder();
+            readAtom(out);
+            return out.toString();
+        }
+
+        private void readCommand(StringBuilder out) {
+            // At '\'
+            int start = ++pos;
+            if (pos < s.length() && !Character.isLetter(s.charAt(pos))) {
+                // \\ \, \{ and friends
+                String name = String.valueOf(s.charAt(pos++));
+                out.append(name.equals("\\") ? "\n" : SYMBOLS.containsKey(name) ? SYMBOLS.get(name) : name);
+                return;
+            }
+            while (pos < s.length() && Character.isLetter(s.charAt(pos))) {
+                pos++;
+            }
+            String name = s.substring(start, pos);
+            switch (name) {
+                case "frac":
+                case "dfrac":
+                case "tfrac": {
+                    String numerator = readArgument();
+                    String denominator = readArgument();
+                    out.append(wrap(numerator)).append('/').append(wrap(denominator));
+                    return;
+                }
+                case "sqrt": {
+                    String index = "";
+                    if (pos < s.length() && s.charAt(pos) == '[') {
+                        int end = s.indexOf(']', pos);
+                        if (end > 0) {
+                            index = s.substring(pos + 1, end);
+                            pos = end + 1;
+                        }
+                    }
+                    String radicand = readArgument();
+                    out.append(index.isEmpty() ? "" : script(index, true)).append('√').append(wrap(radicand));
+                    return;
+                }
+                case "text":
+                case "textbf":
+                case "mathrm":
+                case "mathbf":
+                case "mathit":
+                case "operatorname":
+                    out.append(readArgument());
+                    return;
+                case "begin":
+                case "end":
+                    // Environment name of aligned, cases, matrices
+                    readArgument();
+                    return;
+                case "overline":
+                    out.append(readArgument()).append('̅');
+                    return;
+                case "vec":
+                    out.append(readArgument()).append('⃗');
+                    return;
+                default:
+                    String symbol = SYMBOLS.get(name);
+                    out.append(symbol != null ? symbol : name);
+            }
+        }
+
+        // Parenthesizes anything longer than one symbol, so a/b stays unambiguous
+        private static String wrap(String s) {
+            return s.codePointCount(0, s.length()) <= 1 || s.matches("[0-9.]+|[A-Za-z]+")
+                    ? s : "(" + s + ")";
+        }
+
+        private static String script(String arg, boolean superscript) {
+            String from = superscript ? SUPERSCRIPT_FROM : SUBSCRIPT_FROM;
+            String to = superscript ? SUPERSCRIPT_TO : SUBSCRIPT_TO;
+            if (arg.equals("°") || arg.equals("′")) {
+                // ^\circ and ^\prime are already raised
+                return arg;
+            }
+            StringBuilder mapped = new StringBuilder();
+            for (int i = 0; i < arg.length(); i++) {
+                int index = from.indexOf(arg.charAt(i));
+                if (index < 0) {
+                    // Not every character has a Unicode script form
+                    return (superscript ? "^" : "_") + (arg.length() > 1 ? "(" + arg + ")" : arg);
+                }
+                mapped.append(to.charAt(index));
+            }
+            return mapped.toString();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.aisouti;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * The answer flow shared by {@link CropAndAnswerActivity} and
+ * {@link OverlayAnswerPanel}: encodes the upload, answers from the cache or
+ * a running near-duplicate request, sends the full and the quick request,
+ * marks the trace and stores the answer in the history. The screens only
+ * show what arrives at their {@link Callback}.
+ *
+ * One instance per screen, with the settings read when it was created.
+ * Request threads only.
+ */
+public class AnswerPipeline {
+    private static final String TAG = "AnswerPipeline";
+
+    private static final String SYSTEM_PROMPT = "你是一个专业的题目解答助手。请仔细分析图片中的题目，并给出详细的解答过程。\n\n要求：\n1. 首先识别题目内容和类型\n2. 列出解题思路和关键知识点\n3. 给出详细的解答步骤\n4. 最后总结答案\n\n请用清晰的格式展示解答过程。";
+    private static final String USER_PROMPT = "请分析这道题目并给出详细解答。";
+    private static final int MAX_TOKENS = 4096;
+    // Quick answer mode: a tiny request for just the final answer, sent alongside the full one
+    private static final String QUICK_SYSTEM_PROMPT = "你是一个答题助手。只输出图片中题目的最终答案（如选项字母、数值或一句话结论），不要输出解题过程。";
+    private static final String QUICK_USER_PROMPT = "这道题的最终答案是？";
+    private static final int QUICK_MAX_TOKENS = 32;
+
+    /** API settings, read once so a request never sees half of a change. */
+    public static final class Settings {
+        public final String apiKey;
+        public final String baseUrl;
+        public final String model;
+        // Null unless hedging is enabled
+        public final String hedgeModel;
+        // Failover endpoints, one "<base_url> <api_key> [model]" per line
+        public final String extraEndpoints;
+        public final boolean quickAnswer;
+        public final int byteBudget;
+        public final int tokenBudget;
+
+        private Settings(SharedPreferences prefs) {
+            apiKey = prefs.getString("api_key", "");
+            baseUrl = ApiClient.normalizeBaseUrl(prefs.getString("base_url", "https://api.openai.com/v1"));
+            model = prefs.getString("model", "gpt-4o");
+            hedgeModel = prefs.getBoolean("hedge_enabled", false) ? prefs.getString("hedge_model", "") : null;
+            extraEndpoints = prefs.getString("extra_endpoints", "");
+            quickAnswer = prefs.getBoolean("quick_answer", false);
+            byteBudget = prefs.getInt("upload_kb_budget", 400) * 1024;
+            tokenBudget = prefs.getInt("upload_token_budget", 0);
+        }
+
+        public static Settings load(Context context) {
+            return new Settings(context.getSharedPreferences("settings", Context.MODE_PRIVATE));
+        }
+
+        List<AnswerClient.Target> targets() {
+            return EndpointPool.parseTargets(new AnswerClient.Target(baseUrl, apiKey, model), extraEndpoints);
+        }
+    }
+
+    /**
+     * What one request sends, never changed once prepared, so request body
+     * writers on network threads can read it without locking.
+     */
+    public static final class Upload {
+        final byte[] bytes;
+        final String mimeType;
+        final String detail;
+        // Screenshot and selection it was encoded from, crop null for the full screenshot
+        final long imageHandle;
+        final Rect crop;
+        // Perceptual hash and size of the uploaded pixels for the answer cache, null if undecodable
+        final AnswerCache.ImageKey image;
+        // WebP preview of the uploaded pixels, stored with the answer in the history
+        final byte[] thumbnail;
+        // How the selection was encoded, null if the capture is uploaded as is
+        final AdaptiveEncoder.Result result;
+
+        private Upload(byte[] bytes, String mimeType, String detail, long imageHandle, Rect crop,
+                       AnswerCache.ImageKey image, byte[] thumbnail, AdaptiveEncoder.Result result) {
+            this.bytes = bytes;
+            this.mimeType = mimeType;
+            this.detail = detail;
+            this.imageHandle = imageHandle;
+            this.crop = crop;
+            this.image = image;
+            this.thumbnail = thumbnail;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Receives the outcome of a request, on request and network threads.
+     * Screens post to the main thread and drop what a cancelled request
+     * delivers.
+     */
+    public interface Callback {
+        /** The answer was cached, nothing is sent. */
+        void onCached(String answer);
+
+        /** A content delta of the winning attempt, on a network thread. */
+        void onDelta(String delta);
+
+        void onComplete(String answer);
+
+        /** The request failed; the message is shown in place of the answer. */
+        void onError(String message);
+
+        /**
+         * Listener that shows a running near-duplicate request instead of
+         * sending another one, or null to always send.
+         */
+        default AnswerCache.Listener follow() {
+            return null;
+        }
+
+        /** The request is about to be sent; its deltas follow. */
+        default void onRequestSent() {}
+    }
+
+    /** Receives just the final answer, ahead of the full one, on a request thread. */
+    public interface QuickListener {
+        void onQuickAnswer(String answer);
+    }
+
+    private final Context context;
+    private final Settings settings;
+    // Locked by prepare; a superseded request may still be encoding
+    private final AdaptiveEncoder encoder = new AdaptiveEncoder();
+    // Last prepared upload, reused while the screenshot and selection stay the same
+    private Upload upload;
+
+    public AnswerPipeline(Context context, Settings settings) {
+        this.context = context.getApplicationContext();
+        this.settings = settings;
+        encoder.setByteBudget(settings.byteBudget);
+        encoder.setTokenBudget(settings.tokenBudget);
+    }
+
+    public Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Encodes the selection of the screenshot from the original pixels.
+     * {@code source} is the decoded screenshot if the caller has it, else
+     * the capture is decoded here. The full and the quick request of one
+     * selection share the upload.
+     */
+    public synchronized Upload prepare(ImageHandoff.Entry image, Bitmap source, Rect crop) {
+        if (upload != null && upload.imageHandle == image.handle && Objects.equals(upload.crop, crop)) {
+            return upload;
+        }
+        Bitmap decoded = source != null ? source : BitmapFactory.decodeByteArray(image.bytes, 0, image.bytes.length);
+        if (decoded == null) {
+            // Could not decode, upload what the capture produced
+            upload = new Upload(image.bytes, image.mimeType, "high", image.handle, crop, null, null, null);
+            return upload;
+        }
+
+        Bitmap region = crop == null ? decoded
+                : Bitmap.createBitmap(decoded, crop.left, crop.top, crop.width(), crop.height());
+        AdaptiveEncoder.Result result = encoder.encode(region);
+        AnswerCache.ImageKey imageKey = AnswerCache.ImageKey.of(region);
+        byte[] thumbnail = HistoryStore.thumbnail(region);
+        if (region != decoded) {
+            region.recycle();
+        }
+        if (decoded != source) {
+            decoded.recycle();
+        }
+        upload = new Upload(result.bytes, result.mimeType, result.detail, image.handle, crop, imageKey,
+                thumbnail, result);
+        return upload;
+    }
+
+    /**
+     * Answers the upload: from the cache unless {@code refresh}, by following
+     * a running near-duplicate request, or with a request of its own that
+     * others can follow. {@code uploads} prepares the upload on this thread,
+     * usually through {@link #prepare}, and returns null if the request was
+     * cancelled meanwhile. Returns quietly when the request was cancelled.
+     */
+    public void answer(RequestScheduler.Handle handle, Supplier<Upload> uploads, PerfTracer.Trace trace,
+                       boolean refresh, Callback callback) {
+        AnswerCache cache = MainApplication.from(context).getAnswerCache();
+        AnswerCache.InFlight flight = null;
+        long start = SystemClock.elapsedRealtime();
+        try {
+            Upload upload = uploads.get();
+            if (upload == null) {
+                return;
+            }
+            trace.mark(PerfTracer.UPLOAD_ENCODE);
+            trace.setPayloadBytes(upload.bytes.length);
+
+            if (upload.image != null) {
+                String key = answerKey(upload);
+                AnswerCache.Listener listener = null;
+                if (!refresh) {
+                    String cached = cache.get(upload.image, key);
+                    if (cached != null) {
+                        Log.d(TAG, "Answer cache hit in " + (SystemClock.elapsedRealtime() - start) + "ms");
+                        callback.onCached(cached);
+                        return;
+                    }
+                    listener = callback.follow();
+                }
+                flight = cache.joinOrBegin(handle, upload.image, key, listener);
+                if (flight == null) {
+                    // The running request delivers to the follower
+                    return;
+                }
+            }
+
+            callback.onRequestSent();
+            AnswerCache.InFlight sharing = flight;
+            trace.mark(PerfTracer.REQUEST_SENT);
+            String answer = MainApplication.from(context).getAnswerClient().complete(handle, settings.targets(),
+                    settings.hedgeModel, (model, stream) -> requestBody(upload, model, stream),
+                    new AnswerClient.Listener() {
+                        private boolean first = true;
+
+                        @Override
+                        public void onDelta(String delta) {
+                            if (first) {
+                                first = false;
+                                trace.mark(PerfTracer.FIRST_TOKEN);
+                            }
+                            callback.onDelta(delta);
+                            if (sharing != null) {
+                                sharing.append(delta);
+                            }
+                        }
+
+                        @Override
+                        public void onResponseStarted() {
+                            trace.mark(PerfTracer.FIRST_BYTE);
+                        }
+
+                        @Override
+                        public void onUsage(int promptTokens, int completionTokens) {
+                            trace.setUsage(promptTokens, completionTokens);
+                        }
+                    });
+            Log.d(TAG, "Answer complete in " + (SystemClock.elapsedRealtime() - start) + "ms");
+            trace.mark(PerfTracer.COMPLETE);
+            trace.finish();
+            MainApplication.from(context).getHistoryStore().add(settings.model, answer, upload.thumbnail);
+            if (flight != null) {
+                flight.complete(answer);
+            }
+            callback.onComplete(answer);
+
+        } catch (AnswerClient.HttpException e) {
+            if (!handle.isCancelled()) {
+                callback.onError("请求失败 (" + e.code + "):\n\n" + e.body);
+            }
+        } catch (Exception e) {
+            if (handle.isCancelled()) {
+                // Closed or superseded, nobody is waiting for this answer
+                Log.d(TAG, "Request cancelled");
+                return;
+            }
+            callback.onError("错误: " + e.getMessage() + "\n\nBase URL: " + settings.baseUrl
+                    + "\n模型: " + settings.model);
+        } finally {
+            if (flight != null) {
+                // No-op once completed; releases followers of a failed request
+                flight.fail();
+            }
+        }
+    }
+
+    /**
+     * Asks for just the final answer, alongside {@link #answer} and with
+     * the same upload. Failures are only logged since the full answer is
+     * still coming.
+     */
+    public void quickAnswer(RequestScheduler.Handle handle, Supplier<Upload> uploads, PerfTracer.Trace trace,
+                            boolean refresh, QuickListener listener) {
+        AnswerCache cache = MainApplication.from(context).getAnswerCache();
+        try {
+            // Waits for the encode of the full request and reuses it
+            Upload upload = uploads.get();
+            if (upload == null) {
+                return;
+            }
+            String key = null;
+            if (upload.image != null) {
+                if (!refresh && cache.get(upload.image, answerKey(upload)) != null) {
+                    // The full answer is cached and shows up right away
+                    return;
+                }
+                key = AnswerCache.promptKey(settings.model, QUICK_SYSTEM_PROMPT, QUICK_USER_PROMPT, upload.detail);
+                String cached = refresh ? null : cache.get(upload.image, key);
+                if (cached != null) {
+                    trace.mark(PerfTracer.QUICK_ANSWER);
+                    listener.onQuickAnswer(cached);
+                    return;
+                }
+            }
+
+            String answer = MainApplication.from(context).getAnswerClient().completeQuick(handle, settings.targets(),
+                    (model, stream) -> quickRequestBody(upload, model, stream), delta -> {});
+            // Ignored once the complete answer finished the trace
+            trace.mark(PerfTracer.QUICK_ANSWER);
+            if (key != null) {
+                cache.put(upload.image, key, answer);
+            }
+            listener.onQuickAnswer(answer);
+        } catch (Exception e) {
+            if (!handle.isCancelled()) {
+                Log.w(TAG, "Quick answer failed", e);
+            }
+        }
+    }
+
+    private String answerKey(Upload upload) {
+        return AnswerCache.promptKey(settings.model, SYSTEM_PROMPT, USER_PROMPT, upload.detail);
+    }
+
+    private static ChatRequestWriter requestBody(Upload upload, String model, boolean stream) {
+        ChatRequestWriter writer = new ChatRequestWriter(
+                model, SYSTEM_PROMPT, USER_PROMPT, upload.bytes, upload.mimeType);
+        writer.setMaxTokens(MAX_TOKENS);
+        writer.setStream(stream);
+        writer.setDetail(upload.detail);
+        return writer;
+    }
+
+    private static ChatRequestWriter quickRequestBody(Upload upload, String model, boolean stream) {
+        ChatRequestWriter writer = new ChatRequestWriter(
+                model, QUICK_SYSTEM_PROMPT, QUICK_USER_PROMPT, upload.bytes, upload.mimeType);
+        writer.setMaxTokens(QUICK_MAX_TOKENS);
+        writer.setStream(stream);
+        writer.setDetail(upload.detail);
+        return writer;
+    }
+}
@@ -0,0 +1,174 @@
+package com.aisouti;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.view.LayoutInflater;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shows a Markdown answer in a RecyclerView, one item per block from
+ * {@link AnswerMarkdown#splitBlocks}. Parsing, span building and text
+ * measurement run on a background thread with {@link PrecomputedTextCompat},
+ * so the main thread only binds ready layouts.
+ *
+ * While an answer streams in, only the blocks whose source changed (in
+ * practice the last one) are rendered and rebound; earlier paragraphs keep
+ * their measured text and views. Updates are coalesced: a new text replaces
+ * one that has not been parsed yet.
+ */
+public class AnswerRenderer {
+    private static final class Paragraph {
+        final String source;
+        final PrecomputedTextCompat text;
+
+        Paragraph(String source, PrecomputedTextCompat text) {
+            this.source = source;
+            this.text = text;
+        }
+    }
+
+    private static final class ParagraphHolder extends RecyclerView.ViewHolder {
+        final TextView text;
+
+        ParagraphHolder(TextView text) {
+            super(text);
+            this.text = text;
+        }
+    }
+
+    private final RecyclerView list;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Measured with the same paint as the item views, or setPrecomputedText rejects it
+    private final PrecomputedTextCompat.Params params;
+
+    private final Object lock = new Object();
+    // Latest text not yet parsed, guarded by lock
+    private String pendingText;
+    private boolean parsePending;
+    // Render thread only: the last parse, reused for unchanged blocks
+    private List<Paragraph> parsed = Collections.emptyList();
+    // Main thread only: what the adapter shows
+    private List<Paragraph> shown = Collections.emptyList();
+    private boolean released;
+
+    private final RecyclerView.Adapter<ParagraphHolder> adapter = new RecyclerView.Adapter<ParagraphHolder>() {
+        @Override
+        public ParagraphHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            return new ParagraphHolder(inflateItem(parent));
+        }
+
+        @Override
+        public void onBindViewHolder(ParagraphHolder holder, int position) {
+            TextViewCompat.setPrecomputedText(holder.text, shown.get(position).text);
+        }
+
+        @Override
+        public int getItemCount() {
+            return shown.size();
+        }
+
+        @Override
+        public void onViewAttachedToWindow(ParagraphHolder holder) {
+            // Selectable text in a recycled view loses its selection handling until re-enabled
+            holder.text.setEnabled(false);
+            holder.text.setEnabled(true);
+        }
+    };
+
+    public AnswerRenderer(RecyclerView list) {
+        this.list = list;
+        list.setLayoutManager(new LinearLayoutManager(list.getContext()));
+        // Streaming rebinds the tail item every frame, a change animation would only flicker
+        list.setItemAnimator(null);
+        list.setAdapter(adapter);
+        params = TextViewCompat.getTextMetricsParams(inflateItem(list));
+
+        thread = new HandlerThread("AnswerRenderer", Process.THREAD_PRIORITY_DISPLAY);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    private TextView inflateItem(ViewGroup parent) {
+        return (TextView) LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.item_answer_paragraph, parent, false);
+    }
+
+    /** Replaces the shown answer. Main thread; returns immediately. */
+    public void setText(CharSequence text) {
+        synchronized (lock) {
+            pendingText = text.toString();
+            if (parsePending) {
+                return;
+            }
+            parsePending = true;
+        }
+        handler.post(this::parse);
+    }
+
+    private void parse() {
+        String text;
+        synchronized (lock) {
+            text = pendingText;
+            pendingText = null;
+            parsePending = false;
+        }
+        List<String> blocks = AnswerMarkdown.splitBlocks(text);
+        List<Paragraph> previous = parsed;
+        List<Paragraph> next = new ArrayList<>(blocks.size());
+        for (int i = 0; i < blocks.size(); i++) {
+            String block = blocks.get(i);
+            Paragraph old = i < previous.size() ? previous.get(i) : null;
+            if (old != null && old.source.equals(block)) {
+                next.add(old);
+            } else {
+                next.add(new Paragraph(block, PrecomputedTextCompat.create(AnswerMarkdown.render(block), params)));
+            }
+        }
+        parsed = next;
+        mainHandler.post(() -> apply(next));
+    }
+
+    // Rebinds only the items whose paragraph object changed
+    private void apply(List<Paragraph> next) {
+        if (released) {
+            return;
+        }
+        List<Paragraph> old = shown;
+        shown = next;
+        int common = Math.min(old.size(), next.size());
+        int firstChanged = 0;
+        while (firstChanged < common && old.get(firstChanged) == next.get(firstChanged)) {
+            firstChanged++;
+        }
+        if (firstChanged < common) {
+            adapter.notifyItemRangeChanged(firstChanged, common - firstChanged);
+        }
+        if (next.size() > common) {
+            adapter.notifyItemRangeInserted(common, next.size() - common);
+        } else if (old.size() > common) {
+            adapter.notifyItemRangeRemoved(common, old.size() - common);
+        }
+    }
+
+    /** Stops the render thread. Main thread. */
+    public void release() {
+        released = true;
+        mainHandler.removeCallbacksAndMessages(null);
+        thread.quitSafely();
+        list.setAdapter(null);
+    }
+}
@@ -0,0 +1,157 @@
+package com.aisouti;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+
+/**
+ * Application-scoped client for the OpenAI-compatible API.
+ *
+ * One OkHttpClient is shared by every request, so connections are pooled
+ * and kept alive between questions, HTTP/2 is negotiated via ALPN where the
+ * server supports it, and responses are transparently gzip-decoded.
+ */
+public class ApiClient {
+    private static final String TAG = "ApiClient";
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    // Skip pre-warming when the endpoint was warmed this recently
+    private static final long PREWARM_INTERVAL_MS = 30_000;
+
+    private final OkHttpClient httpClient;
+    private final Map<String, Long> lastPrewarm = new ConcurrentHashMap<>();
+
+    public ApiClient() {
+        httpClient = new OkHttpClient.Builder()
+                .connectTimeout(30, TimeUnit.SECONDS)
+                .readTimeout(120, TimeUnit.SECONDS)
+                .connectionPool(new ConnectionPool(5, 5, TimeUnit.MINUTES))
+                .eventListenerFactory(call -> new ConnectionLogger())
+                .build();
+    }
+
+    public static String normalizeBaseUrl(String baseUrl) {
+        // Ensure base URL doesn't end with /
+        if (baseUrl.endsWith("/")) {
+            return baseUrl.substring(0, baseUrl.length() - 1);
+        }
+        return baseUrl;
+    }
+
+    /**
+     * Creates a chat completion call whose body is streamed by the writer.
+     */
+    public Call newChatCall(String baseUrl, String apiKey, ChatRequestWriter writer) {
+        Request request = new Request.Builder()
+                .url(baseUrl + "/chat/completions")
+                .header("Authorization", "Bearer " + apiKey)
+                .post(new StreamingBody(writer))
+                .build();
+        return httpClient.newCall(request);
+    }
+
+    /** Pool shared by every call; exposed to check connection reuse. */
+    ConnectionPool getConnectionPool() {
+        return httpClient.connectionPool();
+    }
+
+    /**
+     * Opens a connection to the endpoint in the background (DNS, TCP and TLS)
+     * and leaves it idle in the pool, so the next request skips the handshake.
+     */
+    public void prewarm(String baseUrl) {
+        long now = SystemClock.elapsedRealtime();
+        Long last = lastPrewarm.get(baseUrl);
+        if (last != null && now - last < PREWARM_INTERVAL_MS) {
+            return;
+        }
+        lastPrewarm.put(baseUrl, now);
+
+        Request request;
+        try {
+            // Unauthenticated HEAD, the status does not matter, only the connection
+            request = new Request.Builder().url(baseUrl + "/models").head().build();
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Invalid base URL, not pre-warming: " + baseUrl);
+            return;
+        }
+        httpClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                response.close();
+                Log.d(TAG, "Pre-warmed " + baseUrl + " (" + response.protocol() + ")");
+            }
+
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                Log.w(TAG, "Pre-warm failed for " + baseUrl + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private static class StreamingBody extends RequestBody {
+        private final ChatRequestWriter writer;
+
+        StreamingBody(ChatRequestWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return JSON;
+        }
+
+        @Override
+        public long contentLength() {
+            return writer.contentLength();
+        }
+
+        @Override
+        public void writeTo(@NonNull BufferedSink sink) throws IOException {
+            writer.writeTo(sink.outputStream());
+        }
+    }
+
+    // Logs whether each call reused a pooled connection or paid for a new one
+    private static class ConnectionLogger extends EventListener {
+        private long connectStart;
+
+        @Override
+        public void connectStart(@NonNull Call call, @NonNull InetSocketAddress address,
+                                 @NonNull Proxy proxy) {
+            connectStart = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void connectionAcquired(@NonNull Call call, @NonNull Connection connection) {
+            if (connectStart != 0) {
+                Log.d(TAG, "New connection to " + call.request().url().host() + " in "
+                        + (SystemClock.elapsedRealtime() - connectStart) + "ms ("
+                        + connection.protocol() + ")");
+            } else {
+                Log.d(TAG, "Reused connection to " + call.request().url().host()
+                        + " (" + connection.protocol() + ")");
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.aisouti;
+
+import android.graphics.Bitmap;
+import android.media.Image;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Background capture pipeline with explicit stages:
+ * acquire → convert → preprocess → encode → hand off.
+ *
+ * Frames are acquired, converted and encoded on one HandlerThread; only the
+ * hand-off callback is posted to the main thread. The pooled buffers are
+ * confined to the pipeline thread.
+ */
+public class CapturePipeline {
+    private static final String TAG = "CapturePipeline";
+    // The hand-off copy is the source for cropping and upload encoding, keep it sharp
+    private static final int HANDOFF_QUALITY = 95;
+
+    public interface Callback {
+        /** Called on the main thread with the {@link ImageHandoff} handle of the screenshot. */
+        void onEncoded(long handle);
+
+        /** Called on the main thread when a stage failed. */
+        void onError(Exception e);
+    }
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final FrameConverter frameConverter = new FrameConverter();
+    private final ImagePreprocessor preprocessor = new ImagePreprocessor();
+    private final ByteArrayOutputStream encodeStream = new ByteArrayOutputStream();
+
+    // Pooled preprocessing buffers
+    private int[] pixels = new int[0];
+    private final int[] contentBounds = new int[4];
+    private Bitmap contentBitmap;
+
+    public CapturePipeline() {
+        thread = new HandlerThread("CapturePipeline");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Handler of the pipeline thread. ImageReader listeners and all capture
+     * session state should run on it.
+     */
+    public Handler getHandler() {
+        return handler;
+    }
+
+    /**
+     * See {@link ImagePreprocessor#setExcludedBands}. Must be called on the
+     * pipeline thread.
+     */
+    public void setExcludedBands(int top, int bottom) {
+        preprocessor.setExcludedBands(top, bottom);
+    }
+
+    /**
+     * See {@link ImagePreprocessor#setEnhanceText}. Must be called on the
+     * pipeline thread.
+     */
+    public void setEnhanceText(boolean enhanceText) {
+        preprocessor.setEnhanceText(enhanceText);
+    }
+
+    /**
+     * Runs the convert, preprocess and encode stages for an acquired frame
+     * and hands the result off. Must be called on the pipeline thread; takes
+     * ownership of the image.
+     *
+     * @param mask  floating button rectangle {left, top, right, bottom} to
+     *              paint over, or null
+     * @param trace marked after each stage and attached to the handle
+     */
+    public void process(Image image, int[] mask, PerfTracer.Trace trace, Callback callback) {
+        Bitmap bitmap;
+        try {
+            long start = SystemClock.uptimeMillis();
+            bitmap = convert(image);
+            long converted = SystemClock.uptimeMillis();
+            trace.markAt(PerfTracer.CONVERT, converted);
+            Log.d(TAG, "convert " + (converted - start) + "ms");
+        } catch (Exception e) {
+            Log.e(TAG, "process error", e);
+            mainHandler.post(() -> callback.onError(e));
+            return;
+        }
+        processFrame(bitmap, mask, trace, callback);
+    }
+
+    /**
+     * Runs the preprocess and encode stages on a converted frame and hands
+     * the result off. Must be called on the pipeline thread; the frame is
+     * only read.
+     */
+    void processFrame(Bitmap frame, int[] mask, PerfTracer.Trace trace, Callback callback) {
+        try {
+            long start = SystemClock.uptimeMillis();
+            Bitmap content = preprocess(frame, mask);
+            long preprocessed = SystemClock.uptimeMillis();
+            trace.markAt(PerfTracer.PREPROCESS, preprocessed);
+            byte[] jpeg = encode(content);
+            long encoded = SystemClock.uptimeMillis();
+            trace.markAt(PerfTracer.ENCODE, encoded);
+            Log.d(TAG, "preprocess " + (preprocessed - start) + "ms, encode " + (encoded - preprocessed) + "ms, "
+                + content.getWidth() + "x" + content.getHeight() + ", " + jpeg.length + " bytes");
+
+            long handle = ImageHandoff.put(jpeg, "image/jpeg");
+            PerfTracer.attach(handle, trace);
+            mainHandler.post(() -> callback.onEncoded(handle));
+        } catch (Exception e) {
+            Log.e(TAG, "process error", e);
+            mainHandler.post(() -> callback.onError(e));
+        }
+    }
+
+    private Bitmap convert(Image image) {
+        try {
+            // Pooled bitmap, must not be recycled by callers
+            return frameConverter.convert(image);
+        } finally {
+            image.close();
+        }
+    }
+
+    // Trims the frame to its content; returns a pooled bitmap
+    private Bitmap preprocess(Bitmap frame, int[] mask) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        if (pixels.length < width * height) {
+            pixels = new int[width * height];
+        }
+        frame.getPixels(pixels, 0, width, 0, 0, width, height);
+        preprocessor.process(pixels, width, height, mask, contentBounds);
+
+        int left = contentBounds[0];
+        int top = contentBounds[1];
+        int contentWidth = contentBounds[2] - left;
+        int contentHeight = contentBounds[3] - top;
+        contentBitmap = FrameConverter.obtain(contentBitmap, contentWidth, contentHeight);
+        contentBitmap.setPixels(pixels, top * width + left, width, 0, 0, contentWidth, contentHeight);
+        return contentBitmap;
+    }
+
+    private byte[] encode(Bitmap bitmap) {
+        encodeStream.reset();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, HANDOFF_QUALITY, encodeStream);
+        return encodeStream.toByteArray();
+    }
+
+    /**
+     * Allocates the pooled buffers ahead of a capture. Must be called on the
+     * pipeline thread.
+     */
+    public void prepareBuffers(int width, int height) {
+        frameConverter.prepare(width, height);
+    }
+
+    /**
+     * Frees the pooled buffers. Must be called on the pipeline thread.
+     */
+    public void releaseBuffers() {
+        frameConverter.release();
+        if (contentBitmap != null) {
+            contentBitmap.recycle();
+            contentBitmap = null;
+        }
+        pixels = new int[0];
+    }
+
+    /**
+     * Releases the buffers and stops the thread once pending work is done.
+     */
+    public void quit() {
+        handler.post(this::releaseBuffers);
+        thread.quitSafely();
+    }
+}
@@ -0,0 +1,158 @@
+package com.aisouti;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a vision chat completion request body straight to an OutputStream.
+ *
+ * The JSON envelope is rendered up front and split around the image data
+ * URL; the image itself is Base64-encoded chunk by chunk while it is being
+ * written, so neither the Base64 string nor the full body is ever held in
+ * memory. The exact body length is known before writing, which allows
+ * fixed-length streaming.
+ */
+public class ChatRequestWriter {
+    private static final char[] BASE64 =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    // Multiple of 3 so only the last chunk needs padding
+    private static final int CHUNK_INPUT = 3 * 1024;
+
+    private final String model;
+    private final String systemPrompt;
+    private final String userText;
+    private final byte[] image;
+    private final String mimeType;
+    private int maxTokens = 4096;
+    private boolean stream;
+    private String detail = "high";
+
+    private byte[] prefix;
+    private byte[] suffix;
+
+    public ChatRequestWriter(String model, String systemPrompt, String userText,
+                             byte[] image, String mimeType) {
+        this.model = model;
+        this.systemPrompt = systemPrompt;
+        this.userText = userText;
+        this.image = image;
+        this.mimeType = mimeType;
+    }
+
+    public void setMaxTokens(int maxTokens) {
+        this.maxTokens = maxTokens;
+        prefix = null;
+    }
+
+    public void setStream(boolean stream) {
+        this.stream = stream;
+        prefix = null;
+    }
+
+    public void setDetail(String detail) {
+        this.detail = detail;
+        suffix = null;
+    }
+
+    public long contentLength() {
+        render();
+        return prefix.length + base64Length(image.length) + suffix.length;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        render();
+        out.write(prefix);
+        writeBase64(image, out);
+        out.write(suffix);
+    }
+
+    private void render() {
+        if (prefix == null) {
+            StringBuilder sb = new StringBuilder(256 + systemPrompt.length());
+            sb.append("{\"model\":").append(quote(model));
+            sb.append(",\"max_tokens\":").append(maxTokens);
+            if (stream) {
+                sb.append(",\"stream\":true");
+            }
+            sb.append(",\"messages\":[");
+            sb.append("{\"role\":\"system\",\"content\":").append(quote(systemPrompt)).append('}');
+            sb.append(",{\"role\":\"user\",\"content\":[");
+            sb.append("{\"type\":\"image_url\",\"image_url\":{\"url\":\"data:")
+                .append(mimeType).append(";base64,");
+            prefix = sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        if (suffix == null) {
+            StringBuilder sb = new StringBuilder(128);
+            sb.append("\",\"detail\":").append(quote(detail)).append("}}");
+            sb.append(",{\"type\":\"text\",\"text\":").append(quote(userText)).append('}');
+            sb.append("]}]}");
+            suffix = sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    public static long base64Length(int inputLength) {
+        return 4L * ((inputLength + 2) / 3);
+    }
+
+    /**
+     * Base64-encodes {@code data} onto {@code out} using a fixed 4 KB buffer.
+     */
+    public static void writeBase64(byte[] data, OutputStream out) throws IOException {
+        byte[] buffer = new byte[CHUNK_INPUT / 3 * 4];
+        int offset = 0;
+        while (offset < data.length) {
+            int end = Math.min(offset + CHUNK_INPUT, data.length);
+            int pos = 0;
+            int i = offset;
+            for (; i + 2 < end; i += 3) {
+                int bits = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF);
+                buffer[pos++] = (byte) BASE64[bits >>> 18];
+                buffer[pos++] = (byte) BASE64[(bits >>> 12) & 0x3F];
+                buffer[pos++] = (byte) BASE64[(bits >>> 6) & 0x3F];
+                buffer[pos++] = (byte) BASE64[bits & 0x3F];
+            }
+            int remaining = end - i;
+            if (remaining == 1) {
+                int bits = (data[i] & 0xFF) << 16;
+                buffer[pos++] = (byte) BASE64[bits >>> 18];
+                buffer[pos++] = (byte) BASE64[(bits >>> 12) & 0x3F];
+                buffer[pos++] = '=';
+                buffer[pos++] = '=';
+            } else if (remaining == 2) {
+                int bits = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8;
+                buffer[pos++] = (byte) BASE64[bits >>> 18];
+                buffer[pos++] = (byte) BASE64[(bits >>> 12) & 0x3F];
+                buffer[pos++] = (byte) BASE64[(bits >>> 6) & 0x3F];
+                buffer[pos++] = '=';
+            }
+            out.write(buffer, 0, pos);
+            offset = end;
+        }
+    }
+
+    /**
+     * Renders a JSON string literal, including the surrounding quotes.
+     */
+    public static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -2,229 +2,412 @@ package com.aisouti;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Rect;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
-import android.util.Base64;
+import android.os.SystemClock;
+import android.util.Log;
 import android.view.View;
 import android.widget.Button;
-import android.widget.ImageView;
 import android.widget.ProgressBar;
-import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.RecyclerView;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CropAndAnswerActivity extends AppCompatActivity {
-    private ImageView imageView;
-    private TextView answerText;
+    private static final String TAG = "CropAndAnswerActivity";
+
+    private CropImageView imageView;
+    private TextView cropStatsText;
+    private TextView quickAnswerText;
+    private RecyclerView answerList;
+    private AnswerRenderer answerRenderer;
     private ProgressBar progressBar;
-    private ScrollView answerScroll;
+    private View answerPanel;
     private Button confirmButton;
     private Button closeButton;
 
-    private String imageBase64;
-    private ExecutorService executor;
+    private ImageHandoff.Entry image;
+    private Bitmap sourceBitmap;
+    // Selection for the running request in image pixels, null for the full screenshot
+    private volatile Rect requestCrop;
+    // Encodes the selection and answers it; also locks sourceBitmap against onDestroy recycling it
+    private AnswerPipeline pipeline;
     private Handler mainHandler;
 
-    // API settings
-    private String apiKey;
-    private String baseUrl;
-    private String model;
+    private final StringBuilder streamedAnswer = new StringBuilder();
+    private final AtomicBoolean answerUpdatePending = new AtomicBoolean();
+    private volatile long requestStartTime;
+    private volatile long firstTokenTime;
+    // Stage timestamps of the capture, until the first request continues them
+    private PerfTracer.Trace captureTrace;
+    private volatile PerfTracer.Trace trace;
+    // Running requests, main thread only
+    private RequestScheduler.Handle currentRequest;
+    private RequestScheduler.Handle quickRequest;
+    // Time to useful answer (quick answer) and to the complete answer, main thread only
+    private long quickAnswerMs;
+    // Following a near-duplicate request that is already running
+    private volatile AnswerCache.Listener follower;
+    // Skip the answer cache for the running request
+    private volatile boolean forceRefresh;
+
+    // Request state, main thread only
+    private boolean requestRunning;
+    private boolean requestSucceeded;
+    // A request was started speculatively and its answer is not shown yet
+    private boolean speculativePending;
+
+    private boolean autoSubmit;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_crop_answer);
 
-        executor = Executors.newSingleThreadExecutor();
         mainHandler = new Handler(Looper.getMainLooper());
 
         loadSettings();
         initViews();
 
-        imageBase64 = getIntent().getStringExtra("image_base64");
-        if (imageBase64 != null) {
+        image = ImageHandoff.claim(getIntent().getLongExtra(ImageHandoff.EXTRA_HANDLE, 0));
+        if (image != null) {
+            captureTrace = PerfTracer.take(image.handle);
             displayImage();
+            if (autoSubmit) {
+                // Upload while the user is still looking at the screenshot
+                startRequest(false, false);
+            }
         }
     }
 
     private void loadSettings() {
-        android.content.SharedPreferences prefs = getSharedPreferences("settings", MODE_PRIVATE);
-        apiKey = prefs.getString("api_key", "");
-        baseUrl = prefs.getString("base_url", "https://api.openai.com/v1");
-        model = prefs.getString("model", "gpt-4o");
-
-        // Ensure base URL doesn't end with /
-        if (baseUrl.endsWith("/")) {
-            baseUrl = baseUrl.substring(0, baseUrl.length() - 1);
-        }
+        pipeline = new AnswerPipeline(this, AnswerPipeline.Settings.load(this));
+        autoSubmit = getSharedPreferences("settings", MODE_PRIVATE).getBoolean("auto_submit", false);
     }
 
     private void initViews() {
         imageView = findViewById(R.id.screenshot_image);
-        answerText = findViewById(R.id.answer_text);
+        cropStatsText = findViewById(R.id.crop_stats_text);
+        quickAnswerText = findViewById(R.id.quick_answer_text);
+        answerList = findViewById(R.id.answer_list);
+        answerRenderer = new AnswerRenderer(answerList);
         progressBar = findViewById(R.id.progress_bar);
-        answerScroll = findViewById(R.id.answer_scroll);
+        answerPanel = findViewById(R.id.answer_panel);
         confirmButton = findViewById(R.id.confirm_button);
         closeButton = findViewById(R.id.close_button);
 
         confirmButton.setOnClickListener(v -> startAnalysis());
+        confirmButton.setOnLongClickListener(v -> {
+            speculativePending = false;
+            Toast.makeText(this, "忽略缓存，重新请求", Toast.LENGTH_SHORT).show();
+            startRequest(true, true);
+            return true;
+        });
         closeButton.setOnClickListener(v -> finish());
+        imageView.setOnCropChangeListener(crop -> {
+            if (requestRunning) {
+                // The old selection is no longer wanted, restart with the new one
+                startRequest(!speculativePending, forceRefresh);
+            }
+        });
     }
 
     private void displayImage() {
         try {
-            byte[] decodedBytes = Base64.decode(imageBase64, Base64.DEFAULT);
-            Bitmap bitmap = BitmapFactory.decodeByteArray(decodedBytes, 0, decodedBytes.length);
-            imageView.setImageBitmap(bitmap);
+            sourceBitmap = BitmapFactory.decodeByteArray(image.bytes, 0, image.bytes.length);
+            imageView.setImageBitmap(sourceBitmap);
         } catch (Exception e) {
             Toast.makeText(this, "显示图片失败", Toast.LENGTH_SHORT).show();
         }
     }
 
     private void startAnalysis() {
-        if (apiKey.isEmpty()) {
-            Toast.makeText(this, "请先在主页设置 API Key", Toast.LENGTH_SHORT).show();
+        if (speculativePending) {
+            // The request is already running (or done), just show it
+            speculativePending = false;
+            answerPanel.setVisibility(View.VISIBLE);
+            updateControls();
             return;
         }
+        startRequest(true, false);
+    }
 
-        confirmButton.setEnabled(false);
-        progressBar.setVisibility(View.VISIBLE);
-        answerText.setText("AI 正在分析题目...\n\n模型: " + model + "\n");
-        answerScroll.setVisibility(View.VISIBLE);
+    private void startRequest(boolean reveal, boolean refresh) {
+        if (image == null) {
+            if (reveal) {
+                Toast.makeText(this, "截图已失效，请重新截图", Toast.LENGTH_SHORT).show();
+            }
+            return;
+        }
+        AnswerPipeline.Settings settings = pipeline.getSettings();
+        if (settings.apiKey.isEmpty()) {
+            if (reveal) {
+                Toast.makeText(this, "请先在主页设置 API Key", Toast.LENGTH_SHORT).show();
+            }
+            return;
+        }
+
+        cancelRequest();
+        requestCrop = imageView.isFullImage() ? null : imageView.getCropRect();
+        requestRunning = true;
+        requestSucceeded = false;
+        speculativePending = !reveal;
+        forceRefresh = refresh;
+        requestStartTime = SystemClock.elapsedRealtime();
+        firstTokenTime = 0;
+        quickAnswerMs = 0;
+        trace = captureTrace != null ? captureTrace : PerfTracer.begin();
+        captureTrace = null;
+        trace.mark(PerfTracer.SUBMIT);
+
+        quickAnswerText.setVisibility(View.GONE);
+        answerRenderer.setText("AI 正在分析题目...\n\n模型: " + settings.model + "\n");
+        if (reveal) {
+            answerPanel.setVisibility(View.VISIBLE);
+        }
+        updateControls();
 
-        executor.execute(this::callOpenAI);
+        RequestScheduler scheduler = MainApplication.from(this).getRequestScheduler();
+        currentRequest = scheduler.submit("Answer " + image.handle, this::callOpenAI);
+        if (settings.quickAnswer) {
+            quickRequest = scheduler.submit("Quick answer " + image.handle, this::callQuickAnswer);
+        }
     }
 
-    private void callOpenAI() {
-        HttpURLConnection connection = null;
-        try {
-            String endpoint = baseUrl + "/chat/completions";
-            URL url = new URL(endpoint);
-
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("Authorization", "Bearer " + apiKey);
-            connection.setDoOutput(true);
-            connection.setConnectTimeout(30000);
-            connection.setReadTimeout(120000);
-
-            // Build request body
-            JSONObject requestBody = new JSONObject();
-            requestBody.put("model", model);
-            requestBody.put("max_tokens", 4096);
-
-            JSONArray messages = new JSONArray();
-
-            // System message
-            JSONObject systemMsg = new JSONObject();
-            systemMsg.put("role", "system");
-            systemMsg.put("content", "你是一个专业的题目解答助手。请仔细分析图片中的题目，并给出详细的解答过程。\n\n要求：\n1. 首先识别题目内容和类型\n2. 列出解题思路和关键知识点\n3. 给出详细的解答步骤\n4. 最后总结答案\n\n请用清晰的格式展示解答过程。");
-            messages.put(systemMsg);
-
-            // User message with image
-            JSONObject userMsg = new JSONObject();
-            userMsg.put("role", "user");
-
-            JSONArray content = new JSONArray();
-
-            JSONObject imageContent = new JSONObject();
-            imageContent.put("type", "image_url");
-            JSONObject imageUrl = new JSONObject();
-            imageUrl.put("url", "data:image/jpeg;base64," + imageBase64);
-            imageUrl.put("detail", "high");
-            imageContent.put("image_url", imageUrl);
-            content.put(imageContent);
-
-            JSONObject textContent = new JSONObject();
-            textContent.put("type", "text");
-            textContent.put("text", "请分析这道题目并给出详细解答。");
-            content.put(textContent);
-
-            userMsg.put("content", content);
-            messages.put(userMsg);
-
-            requestBody.put("messages", messages);
-
-            // Send request
-            OutputStream os = connection.getOutputStream();
-            os.write(requestBody.toString().getBytes("UTF-8"));
-            os.flush();
-            os.close();
-
-            int responseCode = connection.getResponseCode();
-            BufferedReader reader;
-
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            } else {
-                reader = new BufferedReader(new InputStreamReader(connection.getErrorStream()));
-            }
-
-            StringBuilder response = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                response.append(line);
-            }
-            reader.close();
-
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                JSONObject jsonResponse = new JSONObject(response.toString());
-                String answer = jsonResponse
-                        .getJSONArray("choices")
-                        .getJSONObject(0)
-                        .getJSONObject("message")
-                        .getString("content");
+    // Aborts the socket of the running request; its thread returns without touching the views
+    private void cancelRequest() {
+        if (currentRequest != null) {
+            currentRequest.cancel();
+            currentRequest = null;
+        }
+        if (quickRequest != null) {
+            quickRequest.cancel();
+            quickRequest = null;
+        }
+        AnswerCache.Listener following = follower;
+        if (following != null) {
+            follower = null;
+            AnswerCache cache = MainApplication.from(this).getAnswerCache();
+            MainApplication.from(this).getRequestScheduler()
+                    .submit("Leave shared request", handle -> cache.leave(following));
+        }
+    }
+
+    // Posts to the main thread unless the request was cancelled in the meantime
+    private void post(RequestScheduler.Handle handle, Runnable action) {
+        mainHandler.post(() -> {
+            if (!handle.isCancelled()) {
+                action.run();
+            }
+        });
+    }
+
+    private void onRequestFinished(boolean success) {
+        requestRunning = false;
+        requestSucceeded = success;
+        updateControls();
+    }
+
+    private void updateControls() {
+        if (speculativePending) {
+            confirmButton.setEnabled(true);
+            confirmButton.setText("查看解答");
+            return;
+        }
+        progressBar.setVisibility(requestRunning ? View.VISIBLE : View.GONE);
+        confirmButton.setEnabled(!requestRunning);
+        confirmButton.setText(requestSucceeded ? "重新分析" : "开始解答");
+    }
+
+    private void callOpenAI(RequestScheduler.Handle handle) {
+        pipeline.answer(handle, () -> prepareUpload(handle), trace, forceRefresh, new AnswerPipeline.Callback() {
+            @Override
+            public void onCached(String answer) {
+                post(handle, () -> {
+                    Toast.makeText(CropAndAnswerActivity.this, "已使用缓存答案，长按按钮可强制刷新",
+                            Toast.LENGTH_SHORT).show();
+                    showAnswer(answer);
+                });
+            }
+
+            @Override
+            public AnswerCache.Listener follow() {
+                AnswerCache.Listener listener = newFollower();
+                follower = listener;
+                return listener;
+            }
+
+            @Override
+            public void onRequestSent() {
+                follower = null;
+                synchronized (streamedAnswer) {
+                    streamedAnswer.setLength(0);
+                }
+            }
 
+            @Override
+            public void onDelta(String delta) {
+                CropAndAnswerActivity.this.onDelta(handle, delta);
+            }
+
+            @Override
+            public void onComplete(String answer) {
+                post(handle, () -> showAnswer(answer));
+            }
+
+            @Override
+            public void onError(String message) {
+                post(handle, () -> {
+                    answerRenderer.setText(message);
+                    onRequestFinished(false);
+                });
+            }
+        });
+    }
+
+    // Runs alongside callOpenAI
+    private void callQuickAnswer(RequestScheduler.Handle handle) {
+        pipeline.quickAnswer(handle, () -> prepareUpload(handle), trace, forceRefresh,
+                answer -> post(handle, () -> showQuickAnswer(answer)));
+    }
+
+    private void showQuickAnswer(String answer) {
+        if (requestSucceeded) {
+            // The full answer won the race, nothing to add
+            return;
+        }
+        quickAnswerMs = SystemClock.elapsedRealtime() - requestStartTime;
+        Log.d(TAG, "Time to useful answer: " + quickAnswerMs + "ms");
+        quickAnswerText.setText(String.format(Locale.US, "答案：%s（%.1f 秒）", answer.trim(), quickAnswerMs / 1000f));
+        quickAnswerText.setVisibility(View.VISIBLE);
+    }
+
+    // Shows the output of a running near-duplicate request as if it were ours
+    private AnswerCache.Listener newFollower() {
+        synchronized (streamedAnswer) {
+            streamedAnswer.setLength(0);
+        }
+        return new AnswerCache.Listener() {
+            @Override
+            public void onDelta(String delta) {
+                if (follower != this) {
+                    return;
+                }
+                synchronized (streamedAnswer) {
+                    streamedAnswer.append(delta);
+                }
+                scheduleAnswerUpdate();
+            }
+
+            @Override
+            public void onComplete(String answer) {
                 mainHandler.post(() -> {
-                    answerText.setText(answer);
-                    progressBar.setVisibility(View.GONE);
-                    confirmButton.setEnabled(true);
-                    confirmButton.setText("重新分析");
+                    if (follower == this) {
+                        follower = null;
+                        showAnswer(answer);
+                    }
                 });
-            } else {
-                final String errorMsg = response.toString();
+            }
+
+            @Override
+            public void onFailed() {
                 mainHandler.post(() -> {
-                    answerText.setText("请求失败 (" + responseCode + "):\n\n" + errorMsg);
-                    progressBar.setVisibility(View.GONE);
-                    confirmButton.setEnabled(true);
+                    if (follower == this) {
+                        follower = null;
+                        answerRenderer.setText("共享的相同请求已中断，请重试");
+                        onRequestFinished(false);
+                    }
                 });
             }
+        };
+    }
 
-        } catch (Exception e) {
-            final String errorMsg = e.getMessage();
-            mainHandler.post(() -> {
-                answerText.setText("错误: " + errorMsg + "\n\nBase URL: " + baseUrl + "\n模型: " + model);
-                progressBar.setVisibility(View.GONE);
-                confirmButton.setEnabled(true);
-            });
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
+    // Runs on a request thread: encode only the selected region from the original pixels.
+    // Locked against onDestroy recycling the source bitmap. Returns null if cancelled.
+    private AnswerPipeline.Upload prepareUpload(RequestScheduler.Handle handle) {
+        synchronized (pipeline) {
+            if (handle.isCancelled()) {
+                return null;
+            }
+            AnswerPipeline.Upload upload = pipeline.prepare(image, sourceBitmap, requestCrop);
+            if (upload.result != null && sourceBitmap != null) {
+                String stats = formatUploadStats(upload.result);
+                mainHandler.post(() -> cropStatsText.setText(stats));
+            }
+            return upload;
+        }
+    }
+
+    private String formatUploadStats(AdaptiveEncoder.Result result) {
+        int bytes = result.bytes.length;
+        int fullBytes = image.bytes.length;
+        int fullTokens = VisionTokenEstimator.estimate(sourceBitmap.getWidth(), sourceBitmap.getHeight(), "high");
+        return String.format(Locale.US, "上传 %d×%d %s q%d · %s · %d KB · 约 %d tokens · 编码 %d ms"
+                        + "（原图 %d KB / %d tokens，节省 %d%% / %d%%）",
+                result.width, result.height, result.format(), result.quality, result.detail,
+                bytes / 1024, result.tokens, result.encodeMs, fullBytes / 1024, fullTokens,
+                Math.max(0, 100 - bytes * 100 / fullBytes), Math.max(0, 100 - result.tokens * 100 / fullTokens));
+    }
+
+    // Runs on a network thread for each content delta of the winning attempt
+    private void onDelta(RequestScheduler.Handle handle, String delta) {
+        if (firstTokenTime == 0) {
+            firstTokenTime = SystemClock.elapsedRealtime();
+            Log.d(TAG, "Time to first token: " + (firstTokenTime - requestStartTime) + "ms");
+        }
+        synchronized (streamedAnswer) {
+            // A superseding request may already be reusing the buffer
+            if (handle.isCancelled()) {
+                return;
             }
+            streamedAnswer.append(delta);
+        }
+        scheduleAnswerUpdate();
+    }
+
+    // Coalesce deltas so the answer view is updated at most once per frame
+    private void scheduleAnswerUpdate() {
+        if (answerUpdatePending.compareAndSet(false, true)) {
+            mainHandler.post(() -> answerList.postOnAnimation(() -> {
+                answerUpdatePending.set(false);
+                synchronized (streamedAnswer) {
+                    answerRenderer.setText(streamedAnswer);
+                }
+            }));
         }
     }
 
+    private void showAnswer(String answer) {
+        answerRenderer.setText(answer);
+        long completeMs = SystemClock.elapsedRealtime() - requestStartTime;
+        Log.d(TAG, "Time to useful answer: " + (quickAnswerMs > 0 ? quickAnswerMs : completeMs)
+                + "ms, time to complete: " + completeMs + "ms");
+        onRequestFinished(true);
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (executor != null) {
-            executor.shutdown();
+        cancelRequest();
+        mainHandler.removeCallbacksAndMessages(null);
+        answerRenderer.release();
+        // Keep the screenshot across configuration changes
+        if (image != null && !isChangingConfigurations()) {
+            ImageHandoff.release(image.handle);
+        }
+        if (sourceBitmap != null) {
+            imageView.setImageDrawable(null);
+            synchronized (pipeline) {
+                sourceBitmap.recycle();
+                sourceBitmap = null;
+            }
         }
     }
 }
@@ -0,0 +1,234 @@
+package com.aisouti;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+
+import androidx.appcompat.widget.AppCompatImageView;
+
+/**
+ * ImageView with a draggable crop rectangle. Drag inside the rectangle to
+ * move it, drag a corner to resize it. The selection is kept in image pixel
+ * coordinates so it can be applied to the original bitmap.
+ */
+public class CropImageView extends AppCompatImageView {
+    private static final int MIN_CROP_PX = 48;
+
+    public interface OnCropChangeListener {
+        void onCropChanged(Rect crop);
+    }
+
+    private static final int NONE = 0;
+    private static final int MOVE = 1;
+    private static final int TOP_LEFT = 2;
+    private static final int TOP_RIGHT = 3;
+    private static final int BOTTOM_LEFT = 4;
+    private static final int BOTTOM_RIGHT = 5;
+
+    private final Paint dimPaint = new Paint();
+    private final Paint borderPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint handlePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final float handleRadius;
+    private final float touchSlop;
+
+    // Crop in image pixels
+    private final RectF crop = new RectF();
+    private final RectF viewCrop = new RectF();
+    private final Matrix imageToView = new Matrix();
+    private final Matrix viewToImage = new Matrix();
+    private final float[] point = new float[2];
+
+    private int mode = NONE;
+    private float lastX;
+    private float lastY;
+    private boolean changed;
+    private OnCropChangeListener listener;
+
+    public CropImageView(Context context) {
+        this(context, null);
+    }
+
+    public CropImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        float density = getResources().getDisplayMetrics().density;
+        handleRadius = 6 * density;
+        touchSlop = 24 * density;
+
+        setScaleType(ScaleType.FIT_CENTER);
+        dimPaint.setColor(0x99000000);
+        borderPaint.setColor(0xFFFFFFFF);
+        borderPaint.setStyle(Paint.Style.STROKE);
+        borderPaint.setStrokeWidth(2 * density);
+        handlePaint.setColor(0xFF7C4DFF);
+    }
+
+    public void setOnCropChangeListener(OnCropChangeListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setImageDrawable(Drawable drawable) {
+        super.setImageDrawable(drawable);
+        // Also called from the ImageView constructor, before our fields exist
+        if (crop != null) {
+            resetCrop();
+        }
+    }
+
+    public void resetCrop() {
+        Drawable drawable = getDrawable();
+        if (drawable == null) {
+            crop.setEmpty();
+        } else {
+            crop.set(0, 0, drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight());
+        }
+        invalidate();
+    }
+
+    /**
+     * Returns the selection in image pixels.
+     */
+    public Rect getCropRect() {
+        Rect rect = new Rect();
+        crop.round(rect);
+        return rect;
+    }
+
+    /**
+     * True when the selection covers the whole image.
+     */
+    public boolean isFullImage() {
+        Drawable drawable = getDrawable();
+        return drawable == null || getCropRect().equals(
+            new Rect(0, 0, drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight()));
+    }
+
+    private void updateMatrices() {
+        imageToView.set(getImageMatrix());
+        imageToView.postTranslate(getPaddingLeft(), getPaddingTop());
+        imageToView.invert(viewToImage);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (getDrawable() == null || crop.isEmpty()) {
+            return;
+        }
+        updateMatrices();
+        imageToView.mapRect(viewCrop, crop);
+
+        int w = getWidth();
+        int h = getHeight();
+        canvas.drawRect(0, 0, w, viewCrop.top, dimPaint);
+        canvas.drawRect(0, viewCrop.bottom, w, h, dimPaint);
+        canvas.drawRect(0, viewCrop.top, viewCrop.left, viewCrop.bottom, dimPaint);
+        canvas.drawRect(viewCrop.right, viewCrop.top, w, viewCrop.bottom, dimPaint);
+        canvas.drawRect(viewCrop, borderPaint);
+
+        canvas.drawCircle(viewCrop.left, viewCrop.top, handleRadius, handlePaint);
+        canvas.drawCircle(viewCrop.right, viewCrop.top, handleRadius, handlePaint);
+        canvas.drawCircle(viewCrop.left, viewCrop.bottom, handleRadius, handlePaint);
+        canvas.drawCircle(viewCrop.right, viewCrop.bottom, handleRadius, handlePaint);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (getDrawable() == null) {
+            return super.onTouchEvent(event);
+        }
+        float x = event.getX();
+        float y = event.getY();
+
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                updateMatrices();
+                imageToView.mapRect(viewCrop, crop);
+                mode = hitTest(x, y);
+                lastX = x;
+                lastY = y;
+                changed = false;
+                if (mode != NONE) {
+                    getParent().requestDisallowInterceptTouchEvent(true);
+                    return true;
+                }
+                return false;
+
+            case MotionEvent.ACTION_MOVE:
+                if (mode == NONE) {
+                    return false;
+                }
+                point[0] = x - lastX;
+                point[1] = y - lastY;
+                viewToImage.mapVectors(point);
+                applyDrag(point[0], point[1]);
+                lastX = x;
+                lastY = y;
+                changed = true;
+                invalidate();
+                return true;
+
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                if (mode != NONE && changed && listener != null) {
+                    listener.onCropChanged(getCropRect());
+                }
+                mode = NONE;
+                return true;
+        }
+        return super.onTouchEvent(event);
+    }
+
+    private int hitTest(float x, float y) {
+        if (near(x, y, viewCrop.left, viewCrop.top)) return TOP_LEFT;
+        if (near(x, y, viewCrop.right, viewCrop.top)) return TOP_RIGHT;
+        if (near(x, y, viewCrop.left, viewCrop.bottom)) return BOTTOM_LEFT;
+        if (near(x, y, viewCrop.right, viewCrop.bottom)) return BOTTOM_RIGHT;
+        if (viewCrop.contains(x, y)) return MOVE;
+        return NONE;
+    }
+
+    private boolean near(float x, float y, float px, float py) {
+        return Math.abs(x - px) <= touchSlop && Math.abs(y - py) <= touchSlop;
+    }
+
+    private void applyDrag(float dx, float dy) {
+        Drawable drawable = getDrawable();
+        float maxX = drawable.getIntrinsicWidth();
+        float maxY = drawable.getIntrinsicHeight();
+
+        switch (mode) {
+            case MOVE:
+                dx = Math.max(-crop.left, Math.min(dx, maxX - crop.right));
+                dy = Math.max(-crop.top, Math.min(dy, maxY - crop.bottom));
+                crop.offset(dx, dy);
+                break;
+            case TOP_LEFT:
+                crop.left = clamp(crop.left + dx, 0, crop.right - MIN_CROP_PX);
+                crop.top = clamp(crop.top + dy, 0, crop.bottom - MIN_CROP_PX);
+                break;
+            case TOP_RIGHT:
+                crop.right = clamp(crop.right + dx, crop.left + MIN_CROP_PX, maxX);
+                crop.top = clamp(crop.top + dy, 0, crop.bottom - MIN_CROP_PX);
+                break;
+            case BOTTOM_LEFT:
+                crop.left = clamp(crop.left + dx, 0, crop.right - MIN_CROP_PX);
+                crop.bottom = clamp(crop.bottom + dy, crop.top + MIN_CROP_PX, maxY);
+                break;
+            case BOTTOM_RIGHT:
+                crop.right = clamp(crop.right + dx, crop.left + MIN_CROP_PX, maxX);
+                crop.bottom = clamp(crop.bottom + dy, crop.top + MIN_CROP_PX, maxY);
+                break;
+        }
+    }
+
+    private static float clamp(float value, float min, float max) {
+        return Math.max(min, Math.min(value, max));
+    }
+}
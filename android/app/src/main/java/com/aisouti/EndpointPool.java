@@ -0,0 +1,256 @@
+package com.aisouti;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.Headers;
+
+/**
+ * Health and latency bookkeeping for the configured endpoints, used to
+ * order them for each request.
+ *
+ * Each endpoint keeps an EWMA of its time to first token and of its error
+ * rate. Consecutive failures open a circuit with exponential backoff, which
+ * the next success closes; Retry-After and exhausted x-ratelimit-* headers
+ * block the endpoint until the server says it can take requests again,
+ * whatever happens in between. Blocked endpoints are only used when nothing
+ * else is available.
+ */
+public class EndpointPool {
+    private static final String TAG = "EndpointPool";
+
+    private static final double LATENCY_ALPHA = 0.3;
+    private static final double ERROR_ALPHA = 0.2;
+    // Assumed latency of an endpoint without samples, so it still gets tried
+    private static final double INITIAL_LATENCY_MS = 3000;
+    private static final int FAILURES_TO_OPEN = 3;
+    private static final long BASE_BACKOFF_MS = 5_000;
+    private static final long MAX_BACKOFF_MS = 5 * 60_000;
+
+    private static final Pattern DURATION = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|h|m|s)");
+
+    private static final class Health {
+        final String label;
+        double latencyMs = INITIAL_LATENCY_MS;
+        double errorRate;
+        int consecutiveFailures;
+        // Open circuit, closed by a success
+        long breakerUntil;
+        // Server asked to back off, only time lifts it
+        long rateLimitedUntil;
+        int successes;
+        int failures;
+
+        Health(String label) {
+            this.label = label;
+        }
+
+        double score() {
+            return latencyMs * (1 + 3 * errorRate);
+        }
+
+        long blockedUntil() {
+            return Math.max(breakerUntil, rateLimitedUntil);
+        }
+    }
+
+    private final Map<String, Health> health = new HashMap<>();
+
+    /**
+     * Parses the extra endpoints setting: one endpoint per line as
+     * {@code <base_url> <api_key> [model]}; the model defaults to the
+     * primary one.
+     */
+    public static List<AnswerClient.Target> parseTargets(AnswerClient.Target primary, String extra) {
+        List<AnswerClient.Target> targets = new ArrayList<>();
+        targets.add(primary);
+        for (String line : extra.split("\n")) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length < 2 || parts[0].startsWith("#")) {
+                continue;
+            }
+            targets.add(new AnswerClient.Target(ApiClient.normalizeBaseUrl(parts[0]), parts[1],
+                    parts.length > 2 ? parts[2] : primary.model));
+        }
+        return targets;
+    }
+
+    /**
+     * Returns the targets ordered best first: available endpoints by score,
+     * then blocked ones by the time they become available again.
+     */
+    public synchronized List<AnswerClient.Target> rank(List<AnswerClient.Target> targets) {
+        long now = SystemClock.elapsedRealtime();
+        List<AnswerClient.Target> ranked = new ArrayList<>(targets);
+        Collections.sort(ranked, (a, b) -> {
+            Health ha = get(a);
+            Health hb = get(b);
+            boolean blockedA = ha.blockedUntil() > now;
+            boolean blockedB = hb.blockedUntil() > now;
+            if (blockedA != blockedB) {
+                return blockedA ? 1 : -1;
+            }
+            if (blockedA) {
+                return Long.compare(ha.blockedUntil(), hb.blockedUntil());
+            }
+            return Double.compare(ha.score(), hb.score());
+        });
+        return ranked;
+    }
+
+    public synchronized void recordSuccess(AnswerClient.Target target, long firstTokenMs) {
+        Health h = get(target);
+        h.latencyMs += LATENCY_ALPHA * (firstTokenMs - h.latencyMs);
+        h.errorRate *= 1 - ERROR_ALPHA;
+        h.consecutiveFailures = 0;
+        // Only the circuit closes; a rate limit, possibly reported by this very response, still stands
+        h.breakerUntil = 0;
+        h.successes++;
+    }
+
+    /**
+     * Only failures that say something about the endpoint (see
+     * {@link #isEndpointFailure}) count toward its error rate and circuit;
+     * others are just counted.
+     *
+     * @param code    HTTP status, or 0 for a network failure or timeout
+     * @param headers response headers, or null
+     */
+    public synchronized void recordFailure(AnswerClient.Target target, int code, Headers headers) {
+        Health h = get(target);
+        h.failures++;
+        long now = SystemClock.elapsedRealtime();
+
+        String cause = code == 0 ? "network error" : "HTTP " + code;
+        if (isEndpointFailure(code)) {
+            h.errorRate += ERROR_ALPHA * (1 - h.errorRate);
+            h.consecutiveFailures++;
+            if (h.consecutiveFailures >= FAILURES_TO_OPEN) {
+                int exponent = Math.min(h.consecutiveFailures - FAILURES_TO_OPEN, 10);
+                long blockMs = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << exponent);
+                h.breakerUntil = Math.max(h.breakerUntil, now + blockMs);
+                Log.w(TAG, h.label + " circuit open for " + blockMs + "ms after " + cause);
+            }
+        }
+        long serverMs = headers != null ? serverBackoffMs(code, headers) : 0;
+        if (serverMs > 0) {
+            h.rateLimitedUntil = Math.max(h.rateLimitedUntil, now + serverMs);
+            Log.w(TAG, h.label + " rate limited for " + serverMs + "ms after " + cause);
+        }
+    }
+
+    /**
+     * Network errors, timeouts (408), rate limits (429) and server errors.
+     * Other 4xx responses are problems of the request or the configuration
+     * (bad payload, wrong key or model, image too large) that a healthy
+     * endpoint reports as well.
+     */
+    static boolean isEndpointFailure(int code) {
+        return code == 0 || code == 408 || code == 429 || code >= 500;
+    }
+
+    /**
+     * Blocks an endpoint whose successful response says its request or
+     * token budget is used up until the advertised reset.
+     */
+    public synchronized void observeRateLimit(AnswerClient.Target target, Headers headers) {
+        long blockMs = serverBackoffMs(200, headers);
+        if (blockMs > 0) {
+            Health h = get(target);
+            h.rateLimitedUntil = Math.max(h.rateLimitedUntil, SystemClock.elapsedRealtime() + blockMs);
+            Log.d(TAG, h.label + " rate limit exhausted, blocked for " + blockMs + "ms");
+        }
+    }
+
+    // How long the server asked us to stay away, 0 when it did not say
+    private static long serverBackoffMs(int code, Headers headers) {
+        if (code == 429 || code == 503) {
+            String retryAfter = headers.get("Retry-After");
+            if (retryAfter != null) {
+                try {
+                    return (long) (Double.parseDouble(retryAfter.trim()) * 1000);
+                } catch (NumberFormatException e) {
+                    // Or an HTTP date
+                    Date date = headers.getDate("Retry-After");
+                    if (date != null) {
+                        return Math.max(0, date.getTime() - System.currentTimeMillis());
+                    }
+                }
+            }
+        }
+        long block = 0;
+        if ("0".equals(headers.get("x-ratelimit-remaining-requests"))) {
+            block = Math.max(block, parseDuration(headers.get("x-ratelimit-reset-requests")));
+        }
+        if ("0".equals(headers.get("x-ratelimit-remaining-tokens"))) {
+            block = Math.max(block, parseDuration(headers.get("x-ratelimit-reset-tokens")));
+        }
+        return block;
+    }
+
+    /** Parses OpenAI style reset durations such as "20ms", "1s" or "6m0s". */
+    static long parseDuration(String value) {
+        if (value == null) {
+            return 0;
+        }
+        Matcher m = DURATION.matcher(value);
+        double ms = 0;
+        while (m.find()) {
+            double n = Double.parseDouble(m.group(1));
+            switch (m.group(2)) {
+                case "h":
+                    ms += n * 3_600_000;
+                    break;
+                case "m":
+                    ms += n * 60_000;
+                    break;
+                case "s":
+                    ms += n * 1000;
+                    break;
+                default:
+                    ms += n;
+                    break;
+            }
+        }
+        return (long) ms;
+    }
+
+    private Health get(AnswerClient.Target target) {
+        String key = target.baseUrl + "#" + Integer.toHexString(target.apiKey.hashCode());
+        Health h = health.get(key);
+        if (h == null) {
+            h = new Health(target.baseUrl);
+            health.put(key, h);
+        }
+        return h;
+    }
+
+    public synchronized String describe() {
+        if (health.isEmpty()) {
+            return "端点: 暂无统计";
+        }
+        long now = SystemClock.elapsedRealtime();
+        StringBuilder sb = new StringBuilder("端点:");
+        for (Health h : health.values()) {
+            sb.append(String.format(Locale.US, "\n%s · 首字 %.0f ms · 错误率 %.0f%% · 成功 %d / 失败 %d",
+                    h.label, h.latencyMs, h.errorRate * 100, h.successes, h.failures));
+            if (h.breakerUntil > now) {
+                sb.append(String.format(Locale.US, " · 熔断 %d s", (h.breakerUntil - now) / 1000));
+            }
+            if (h.rateLimitedUntil > now) {
+                sb.append(String.format(Locale.US, " · 限流 %d s", (h.rateLimitedUntil - now) / 1000));
+            }
+        }
+        return sb.toString();
+    }
+}
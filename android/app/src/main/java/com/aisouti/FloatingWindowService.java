@@ -5,9 +5,11 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ServiceInfo;
 import android.graphics.PixelFormat;
+import android.graphics.Rect;
 import android.os.Build;
 import android.os.IBinder;
 import android.util.Log;
@@ -26,12 +28,20 @@ public class FloatingWindowService extends Service {
     private static final String TAG = "FloatingWindowService";
     public static final String ACTION_SHOW = "com.aisouti.SHOW_FLOATING_WINDOW";
     public static final String ACTION_HIDE = "com.aisouti.HIDE_FLOATING_WINDOW";
+    public static final String ACTION_HIDE_BUTTON = "com.aisouti.HIDE_FLOATING_BUTTON";
+    public static final String ACTION_SHOW_BUTTON = "com.aisouti.SHOW_FLOATING_BUTTON";
+    public static final String ACTION_SHOW_ANSWER = "com.aisouti.SHOW_OVERLAY_ANSWER";
     private static final String CHANNEL_ID = "floating_window_channel";
     private static final int NOTIFICATION_ID = 1;
 
+    // Screen rectangle of the floating button, null while it is not shown
+    private static volatile Rect buttonBounds;
+
     private WindowManager windowManager;
     private View floatingView;
     private WindowManager.LayoutParams params;
+    // Created on the first overlay answer; holds no views while collapsed
+    private OverlayAnswerPanel answerPanel;
 
     private int initialX;
     private int initialY;
@@ -39,6 +49,33 @@ public class FloatingWindowService extends Service {
     private float initialTouchY;
     private boolean isMoving = false;
 
+    /**
+     * Returns a copy of the floating button's on-screen bounds, or null when
+     * the floating window is not shown.
+     */
+    @Nullable
+    public static Rect getButtonBounds() {
+        Rect bounds = buttonBounds;
+        return bounds != null ? new Rect(bounds) : null;
+    }
+
+    /**
+     * Whether captures should be answered in the overlay panel rather than
+     * in {@link CropAndAnswerActivity}: enabled in the settings and the
+     * floating button is shown.
+     */
+    public static boolean isOverlayAnswerEnabled(Context context) {
+        return buttonBounds != null && context.getSharedPreferences("settings", MODE_PRIVATE)
+            .getBoolean("overlay_answer", true);
+    }
+
+    static int overlayType() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            return WindowManager.LayoutParams.TYPE_APPLICATION_OVERLAY;
+        }
+        return WindowManager.LayoutParams.TYPE_PHONE;
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -62,8 +99,19 @@ public class FloatingWindowService extends Service {
                     startForeground(NOTIFICATION_ID, createNotification());
                 }
                 showFloatingWindow();
+            } else if (ACTION_HIDE_BUTTON.equals(action)) {
+                if (floatingView != null) {
+                    floatingView.setVisibility(View.INVISIBLE);
+                }
+            } else if (ACTION_SHOW_BUTTON.equals(action)) {
+                if (floatingView != null) {
+                    floatingView.setVisibility(View.VISIBLE);
+                }
+            } else if (ACTION_SHOW_ANSWER.equals(action)) {
+                showAnswer(intent.getLongExtra(ImageHandoff.EXTRA_HANDLE, 0));
             } else if (ACTION_HIDE.equals(action)) {
                 hideFloatingWindow();
+                stopCaptureSession();
                 stopForeground(true);
                 stopSelf();
             }
@@ -113,17 +161,10 @@ public class FloatingWindowService extends Service {
         try {
             floatingView = LayoutInflater.from(this).inflate(R.layout.floating_window, null);
 
-            int layoutFlag;
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                layoutFlag = WindowManager.LayoutParams.TYPE_APPLICATION_OVERLAY;
-            } else {
-                layoutFlag = WindowManager.LayoutParams.TYPE_PHONE;
-            }
-
             params = new WindowManager.LayoutParams(
                 WindowManager.LayoutParams.WRAP_CONTENT,
                 WindowManager.LayoutParams.WRAP_CONTENT,
-                layoutFlag,
+                overlayType(),
                 WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE,
                 PixelFormat.TRANSLUCENT
             );
@@ -145,14 +186,17 @@ public class FloatingWindowService extends Service {
                             initialTouchX = event.getRawX();
                             initialTouchY = event.getRawY();
                             isMoving = false;
+                            onTouchDown();
                             return true;
 
                         case MotionEvent.ACTION_MOVE:
                             float deltaX = event.getRawX() - initialTouchX;
                             float deltaY = event.getRawY() - initialTouchY;
 
-                            if (Math.abs(deltaX) > 10 || Math.abs(deltaY) > 10) {
+                            if (!isMoving && (Math.abs(deltaX) > 10 || Math.abs(deltaY) > 10)) {
                                 isMoving = true;
+                                // Turned into a drag, drop the speculative capture setup
+                                sendCaptureAction(ScreenCaptureService.ACTION_CANCEL_PREPARE);
                             }
 
                             params.x = initialX + (int) deltaX;
@@ -164,8 +208,12 @@ public class FloatingWindowService extends Service {
 
                         case MotionEvent.ACTION_UP:
                             long touchDuration = System.currentTimeMillis() - touchStartTime;
-                            if (!isMoving && touchDuration < 300) {
-                                onFloatingWindowClick();
+                            if (isMoving) {
+                                updateButtonBounds();
+                            } else if (touchDuration < 300) {
+                                onFloatingWindowClick(event.getDownTime());
+                            } else {
+                                sendCaptureAction(ScreenCaptureService.ACTION_CANCEL_PREPARE);
                             }
                             return true;
                     }
@@ -174,6 +222,8 @@ public class FloatingWindowService extends Service {
             });
 
             windowManager.addView(floatingView, params);
+            floatingView.post(this::updateButtonBounds);
+            prewarmConnection();
             Log.d(TAG, "floatingView added successfully");
 
         } catch (Exception e) {
@@ -182,8 +232,44 @@ public class FloatingWindowService extends Service {
         }
     }
 
+    // Warm the API connection so the first question after a capture skips the handshake
+    private void prewarmConnection() {
+        String baseUrl = getSharedPreferences("settings", MODE_PRIVATE)
+            .getString("base_url", "https://api.openai.com/v1");
+        MainApplication.from(this).getApiClient().prewarm(ApiClient.normalizeBaseUrl(baseUrl));
+    }
+
+    private void updateButtonBounds() {
+        if (floatingView == null || !floatingView.isAttachedToWindow()) {
+            return;
+        }
+        int[] location = new int[2];
+        floatingView.getLocationOnScreen(location);
+        buttonBounds = new Rect(location[0], location[1],
+            location[0] + floatingView.getWidth(), location[1] + floatingView.getHeight());
+    }
+
+    private void showAnswer(long handle) {
+        if (floatingView == null) {
+            // Hidden before the capture finished, answer in the activity instead
+            Intent intent = new Intent(this, CropAndAnswerActivity.class);
+            intent.putExtra(ImageHandoff.EXTRA_HANDLE, handle);
+            intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            startActivity(intent);
+            return;
+        }
+        if (answerPanel == null) {
+            answerPanel = new OverlayAnswerPanel(this, windowManager);
+        }
+        answerPanel.show(handle);
+    }
+
     private void hideFloatingWindow() {
         Log.d(TAG, "hideFloatingWindow");
+        buttonBounds = null;
+        if (answerPanel != null) {
+            answerPanel.collapse();
+        }
         if (floatingView != null) {
             try {
                 windowManager.removeView(floatingView);
@@ -194,11 +280,44 @@ public class FloatingWindowService extends Service {
         }
     }
 
-    private void onFloatingWindowClick() {
+    // Speculatively warm everything a capture needs while the finger is still down
+    private void onTouchDown() {
+        prewarmConnection();
+        sendCaptureAction(ScreenCaptureService.ACTION_PREPARE);
+    }
+
+    private void sendCaptureAction(String action) {
+        if (!ScreenCaptureService.isSessionActive()) {
+            return;
+        }
+        try {
+            Intent intent = new Intent(this, ScreenCaptureService.class);
+            intent.setAction(action);
+            startService(intent);
+        } catch (Exception e) {
+            Log.e(TAG, "Error sending " + action, e);
+        }
+    }
+
+    private void onFloatingWindowClick(long tapTime) {
         Log.d(TAG, "onFloatingWindowClick");
+        if (answerPanel != null) {
+            // A new question replaces the shown answer, and the panel must not be in the screenshot
+            answerPanel.collapse();
+        }
         try {
+            if (ScreenCaptureService.isSessionActive()) {
+                // Reuse the running projection, no permission dialog or app switch needed
+                Intent intent = new Intent(this, ScreenCaptureService.class);
+                intent.setAction(ScreenCaptureService.ACTION_CAPTURE);
+                intent.putExtra(ScreenCaptureService.EXTRA_TAP_TIME, tapTime);
+                startService(intent);
+                return;
+            }
+
             Intent intent = new Intent(this, ScreenCaptureActivity.class);
             intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            intent.putExtra(ScreenCaptureService.EXTRA_TAP_TIME, tapTime);
             startActivity(intent);
         } catch (Exception e) {
             Log.e(TAG, "Error starting ScreenCaptureActivity", e);
@@ -206,6 +325,19 @@ public class FloatingWindowService extends Service {
         }
     }
 
+    private void stopCaptureSession() {
+        if (!ScreenCaptureService.isSessionActive()) {
+            return;
+        }
+        try {
+            Intent intent = new Intent(this, ScreenCaptureService.class);
+            intent.setAction(ScreenCaptureService.ACTION_STOP);
+            startService(intent);
+        } catch (Exception e) {
+            Log.e(TAG, "Error stopping capture session", e);
+        }
+    }
+
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
@@ -217,5 +349,6 @@ public class FloatingWindowService extends Service {
         Log.d(TAG, "onDestroy");
         super.onDestroy();
         hideFloatingWindow();
+        stopCaptureSession();
     }
 }
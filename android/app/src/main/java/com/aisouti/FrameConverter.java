@@ -0,0 +1,89 @@
+package com.aisouti;
+
+import android.graphics.Bitmap;
+import android.media.Image;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts RGBA_8888 ImageReader frames into an ARGB_8888 bitmap that is
+ * reused across captures, so repeated captures do not allocate full-frame
+ * buffers on the Java heap.
+ *
+ * The returned bitmap is owned by the converter and stays valid until the
+ * next call to {@link #convert(Image)} or {@link #release()}.
+ */
+public class FrameConverter {
+    private static final String TAG = "FrameConverter";
+
+    private Bitmap bitmap;
+    // Direct buffer, lives outside the Java heap
+    private ByteBuffer scratch;
+
+    public Bitmap convert(Image image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer buffer = plane.getBuffer();
+        int pixelStride = plane.getPixelStride();
+        int rowStride = plane.getRowStride();
+        int rowBytes = width * pixelStride;
+
+        ensureBitmap(width, height);
+        buffer.rewind();
+        if (rowStride == rowBytes) {
+            bitmap.copyPixelsFromBuffer(buffer);
+        } else {
+            ensureScratch(rowBytes * height);
+            StrideCopier.copyRows(buffer, rowStride, rowBytes, height, scratch);
+            bitmap.copyPixelsFromBuffer(scratch);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Allocates the pooled buffers ahead of the first capture.
+     */
+    public void prepare(int width, int height) {
+        ensureBitmap(width, height);
+        ensureScratch(width * height * 4);
+    }
+
+    public void release() {
+        if (bitmap != null) {
+            bitmap.recycle();
+            bitmap = null;
+        }
+        scratch = null;
+    }
+
+    private void ensureBitmap(int width, int height) {
+        bitmap = obtain(bitmap, width, height);
+    }
+
+    /**
+     * Returns {@code pooled} resized to the given size, reconfiguring it in
+     * place when its allocation is large enough and replacing it otherwise.
+     */
+    static Bitmap obtain(Bitmap pooled, int width, int height) {
+        if (pooled != null && pooled.getWidth() == width && pooled.getHeight() == height) {
+            return pooled;
+        }
+        if (pooled != null && pooled.getAllocationByteCount() >= width * height * 4) {
+            pooled.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+            return pooled;
+        }
+        if (pooled != null) {
+            pooled.recycle();
+        }
+        Log.d(TAG, "Allocating bitmap " + width + "x" + height);
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private void ensureScratch(int size) {
+        if (scratch == null || scratch.capacity() < size) {
+            scratch = ByteBuffer.allocateDirect(size);
+        }
+    }
+}
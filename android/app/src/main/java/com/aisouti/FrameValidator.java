@@ -0,0 +1,96 @@
+package com.aisouti;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cheap sampling checks on RGBA_8888 frames straight from an ImageReader plane.
+ * Only a small grid of pixels is read, so a check costs microseconds.
+ */
+public final class FrameValidator {
+    // Dense enough that a dark-mode screen hits some text or icon pixels
+    private static final int GRID = 32;
+    private static final int BLANK_THRESHOLD = 16;
+    // Largest luma spread among the samples of a blank frame
+    private static final int UNIFORM_SPREAD = 2;
+
+    // Floating button background #6200EE, drawn at 0.9 alpha over the app below it
+    private static final int OVERLAY_R = 0x62;
+    private static final int OVERLAY_G = 0x00;
+    private static final int OVERLAY_B = 0xEE;
+    private static final int OVERLAY_TOLERANCE = 40;
+
+    private FrameValidator() {}
+
+    /**
+     * Returns true when the frame is uniformly (nearly) black, which is what
+     * the virtual display produces before the first real composition and for
+     * secure windows. A dark-mode screen is not blank: its text and icons
+     * spread the sampled values even when every pixel is dark.
+     */
+    public static boolean isBlank(ByteBuffer buffer, int rowStride, int pixelStride,
+                                  int width, int height) {
+        int min = 255;
+        int max = 0;
+        for (int gy = 0; gy < GRID; gy++) {
+            int y = (int) ((gy + 0.5f) * height / GRID);
+            for (int gx = 0; gx < GRID; gx++) {
+                int x = (int) ((gx + 0.5f) * width / GRID);
+                int offset = y * rowStride + x * pixelStride;
+                int r = buffer.get(offset) & 0xFF;
+                int g = buffer.get(offset + 1) & 0xFF;
+                int b = buffer.get(offset + 2) & 0xFF;
+                if (r > BLANK_THRESHOLD || g > BLANK_THRESHOLD || b > BLANK_THRESHOLD) {
+                    return false;
+                }
+                int luma = (r * 3 + g * 6 + b) / 10;
+                min = Math.min(min, luma);
+                max = Math.max(max, luma);
+                if (max - min > UNIFORM_SPREAD) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true when the floating button is still visible inside the given
+     * screen rectangle. The ring around the icon is sampled on four sides.
+     */
+    public static boolean showsOverlay(ByteBuffer buffer, int rowStride, int pixelStride,
+                                       int width, int height,
+                                       int left, int top, int right, int bottom) {
+        int w = right - left;
+        int h = bottom - top;
+        if (w <= 0 || h <= 0) {
+            return false;
+        }
+        int cx = left + w / 2;
+        int cy = top + h / 2;
+        int[][] samples = {
+            {left + w / 5, cy},
+            {right - w / 5, cy},
+            {cx, top + h / 5},
+            {cx, bottom - h / 5},
+        };
+
+        int matches = 0;
+        for (int[] p : samples) {
+            int x = p[0];
+            int y = p[1];
+            if (x < 0 || y < 0 || x >= width || y >= height) {
+                continue;
+            }
+            int offset = y * rowStride + x * pixelStride;
+            int r = buffer.get(offset) & 0xFF;
+            int g = buffer.get(offset + 1) & 0xFF;
+            int b = buffer.get(offset + 2) & 0xFF;
+            if (Math.abs(r - OVERLAY_R) <= OVERLAY_TOLERANCE
+                    && Math.abs(g - OVERLAY_G) <= OVERLAY_TOLERANCE
+                    && Math.abs(b - OVERLAY_B) <= OVERLAY_TOLERANCE) {
+                matches++;
+            }
+        }
+        return matches >= 3;
+    }
+}
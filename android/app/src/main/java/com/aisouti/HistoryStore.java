@@ -0,0 +1,355 @@
+package com.aisouti;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Local history of answered questions with a full-text index over the
+ * answer. The model only returns the answer, so the list shows a summary
+ * from its start, which usually restates the question.
+ *
+ * Entries keep a small WebP thumbnail instead of the screenshot. Total size
+ * is bounded by entry count and bytes; the least recently used entries are
+ * evicted first. Writes are queued and committed in batches on a
+ * background thread; {@link #search} and {@link #get} read the database
+ * directly and must not be called on the main thread.
+ *
+ * FTS4 has no tokenizer that splits Chinese text, so CJK characters are
+ * indexed as single-character tokens and queries become phrase matches,
+ * which makes any substring of the answer searchable.
+ */
+public class HistoryStore extends SQLiteOpenHelper {
+    private static final String TAG = "HistoryStore";
+
+    private static final String DB_NAME = "history.db";
+    private static final int DB_VERSION = 2;
+
+    private static final int MAX_ENTRIES = 500;
+    private static final long MAX_BYTES = 16 * 1024 * 1024;
+    private static final int THUMBNAIL_SIDE = 320;
+    private static final int THUMBNAIL_QUALITY = 60;
+    // Answers arriving within this window share one transaction
+    private static final long BATCH_DELAY_MS = 500;
+    private static final int SUMMARY_CHARS = 200;
+    private static final int SEARCH_LIMIT = 20;
+
+    /** One stored question and its answer. */
+    public static final class Entry {
+        public long id;
+        public long createdAt;
+        public String model;
+        // Start of the answer for the list, see summaryOf()
+        public String summary;
+        public String answer;
+        // WebP bytes, only loaded by get()
+        public byte[] thumbnail;
+    }
+
+    /** Receives a read result on the main thread. */
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    private final Handler writer;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<ContentValues> pending = new ArrayList<>();
+    private final Runnable flushTask = this::flush;
+
+    public HistoryStore(Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+        HandlerThread thread = new HandlerThread("HistoryStore");
+        thread.start();
+        writer = new Handler(thread.getLooper());
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE history ("
+                + "id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "created_at INTEGER NOT NULL, "
+                + "last_used_at INTEGER NOT NULL, "
+                + "model TEXT, "
+                + "summary TEXT NOT NULL, "
+                + "answer TEXT NOT NULL, "
+                + "thumbnail BLOB, "
+                + "size INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX history_last_used ON history(last_used_at)");
+        // rowid = history.id; holds the tokenized copy of the answer
+        db.execSQL("CREATE VIRTUAL TABLE history_fts USING fts4(answer)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // History is a convenience, start over on schema changes
+        db.execSQL("DROP TABLE IF EXISTS history");
+        db.execSQL("DROP TABLE IF EXISTS history_fts");
+        onCreate(db);
+    }
+
+    /**
+     * Queues an answer for storage; returns without touching the database.
+     *
+     * @param thumbnail from {@link #thumbnail}, or null
+     */
+    public void add(String model, String answer, byte[] thumbnail) {
+        long now = System.currentTimeMillis();
+        String summary = summaryOf(answer);
+        ContentValues values = new ContentValues();
+        values.put("created_at", now);
+        values.put("last_used_at", now);
+        values.put("model", model);
+        values.put("summary", summary);
+        values.put("answer", answer);
+        values.put("thumbnail", thumbnail);
+        values.put("size", answer.length() * 2 + summary.length() * 2
+                + (thumbnail != null ? thumbnail.length : 0));
+        synchronized (pending) {
+            pending.add(values);
+            if (pending.size() == 1) {
+                writer.postDelayed(flushTask, BATCH_DELAY_MS);
+            }
+        }
+    }
+
+    /** Marks an entry as used so it is evicted last. */
+    public void touch(long id) {
+        writer.post(() -> {
+            ContentValues values = new ContentValues();
+            values.put("last_used_at", System.currentTimeMillis());
+            getWritableDatabase().update("history", values, "id = ?", new String[]{String.valueOf(id)});
+        });
+    }
+
+    // Runs on the writer thread
+    private void flush() {
+        List<ContentValues> batch;
+        synchronized (pending) {
+            batch = new ArrayList<>(pending);
+            pending.clear();
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (ContentValues values : batch) {
+                long id = db.insert("history", null, values);
+                if (id < 0) {
+                    continue;
+                }
+                ContentValues fts = new ContentValues();
+                fts.put("docid", id);
+                fts.put("answer", tokenize(values.getAsString("answer")));
+                db.insert("history_fts", null, fts);
+            }
+            evict(db);
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to write history", e);
+        } finally {
+            db.endTransaction();
+        }
+        Log.d(TAG, "Stored " + batch.size() + " history entries");
+    }
+
+    private static void evict(SQLiteDatabase db) {
+        long count;
+        long bytes;
+        try (Cursor c = db.rawQuery("SELECT COUNT(*), TOTAL(size) FROM history", null)) {
+            c.moveToFirst();
+            count = c.getLong(0);
+            bytes = c.getLong(1);
+        }
+        if (count <= MAX_ENTRIES && bytes <= MAX_BYTES) {
+            return;
+        }
+        List<String> evicted = new ArrayList<>();
+        try (Cursor c = db.rawQuery("SELECT id, size FROM history ORDER BY last_used_at", null)) {
+            while ((count > MAX_ENTRIES || bytes > MAX_BYTES) && c.moveToNext()) {
+                evicted.add(String.valueOf(c.getLong(0)));
+                count--;
+                bytes -= c.getLong(1);
+            }
+        }
+        for (String id : evicted) {
+            db.delete("history", "id = ?", new String[]{id});
+            db.delete("history_fts", "docid = ?", new String[]{id});
+        }
+        Log.d(TAG, "Evicted " + evicted.size() + " history entries");
+    }
+
+    /**
+     * Entries whose answer contains every term of the query,
+     * most recently used first; the latest entries for an empty query.
+     * Thumbnails are not loaded.
+     */
+    public List<Entry> search(String query) {
+        String match = matchQuery(query);
+        SQLiteDatabase db = getReadableDatabase();
+        String sql = match.isEmpty()
+                ? "SELECT id, created_at, model, summary, answer FROM history"
+                        + " ORDER BY last_used_at DESC LIMIT " + SEARCH_LIMIT
+                : "SELECT h.id, h.created_at, h.model, h.summary, h.answer FROM history h"
+                        + " JOIN history_fts f ON f.docid = h.id WHERE history_fts MATCH ?"
+                        + " ORDER BY h.last_used_at DESC LIMIT " + SEARCH_LIMIT;
+        List<Entry> entries = new ArrayList<>();
+        try (Cursor c = db.rawQuery(sql, match.isEmpty() ? null : new String[]{match})) {
+            while (c.moveToNext()) {
+                Entry entry = new Entry();
+                entry.id = c.getLong(0);
+                entry.createdAt = c.getLong(1);
+                entry.model = c.getString(2);
+                entry.summary = c.getString(3);
+                entry.answer = c.getString(4);
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Commits queued answers, so a question answered a moment ago is found,
+     * then runs {@link #search} and delivers the result on the main thread.
+     */
+    public void searchAsync(String query, Callback<List<Entry>> callback) {
+        writer.post(() -> {
+            flush();
+            List<Entry> entries = search(query);
+            mainHandler.post(() -> callback.onResult(entries));
+        });
+    }
+
+    /** Like {@link #get}, delivering the entry or null on the main thread. */
+    public void getAsync(long id, Callback<Entry> callback) {
+        writer.post(() -> {
+            Entry entry = get(id);
+            mainHandler.post(() -> callback.onResult(entry));
+        });
+    }
+
+    /** The entry with its thumbnail, or null if it was evicted. */
+    public Entry get(long id) {
+        try (Cursor c = getReadableDatabase().rawQuery(
+                "SELECT id, created_at, model, summary, answer, thumbnail FROM history WHERE id = ?",
+                new String[]{String.valueOf(id)})) {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            Entry entry = new Entry();
+            entry.id = c.getLong(0);
+            entry.createdAt = c.getLong(1);
+            entry.model = c.getString(2);
+            entry.summary = c.getString(3);
+            entry.answer = c.getString(4);
+            entry.thumbnail = c.isNull(5) ? null : c.getBlob(5);
+            return entry;
+        }
+    }
+
+    // The system prompt asks the model to identify the question first, so this usually names it
+    static String summaryOf(String answer) {
+        String text = answer.replaceAll("[#*>`]", "").trim();
+        return text.length() > SUMMARY_CHARS ? text.substring(0, SUMMARY_CHARS) : text;
+    }
+
+    // Makes each CJK character its own token and drops punctuation, matching matchQuery()
+    static String tokenize(String text) {
+        StringBuilder sb = new StringBuilder(text.length() * 2);
+        for (int i = 0; i < text.length(); ) {
+            int cp = text.codePointAt(i);
+            if (isCjk(cp)) {
+                sb.append(' ').appendCodePoint(cp).append(' ');
+            } else if (Character.isLetterOrDigit(cp)) {
+                sb.appendCodePoint(cp);
+            } else {
+                sb.append(' ');
+            }
+            i += Character.charCount(cp);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Builds an FTS MATCH expression: every whitespace separated term must
+     * match; CJK runs as phrases of single characters, other words as
+     * prefixes. Returns "" when nothing is searchable.
+     */
+    static String matchQuery(String query) {
+        StringBuilder match = new StringBuilder();
+        for (String term : query.trim().split("\\s+")) {
+            // Keep letters, digits and CJK; everything else separates tokens
+            StringBuilder tokens = new StringBuilder();
+            StringBuilder word = new StringBuilder();
+            for (int i = 0; i < term.length(); ) {
+                int cp = term.codePointAt(i);
+                i += Character.charCount(cp);
+                if (isCjk(cp)) {
+                    appendToken(tokens, word);
+                    tokens.append(tokens.length() > 0 ? " " : "").appendCodePoint(cp);
+                } else if (Character.isLetterOrDigit(cp)) {
+                    word.appendCodePoint(cp);
+                } else {
+                    appendToken(tokens, word);
+                }
+            }
+            appendToken(tokens, word);
+            if (tokens.length() == 0) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(tokens);
+            int last = term.codePointBefore(term.length());
+            if (Character.isLetterOrDigit(last) && !isCjk(last)) {
+                // Prefix match on a trailing word, it may still be being typed
+                match.append('*');
+            }
+            match.append('"');
+        }
+        return match.toString();
+    }
+
+    private static void appendToken(StringBuilder tokens, StringBuilder word) {
+        if (word.length() > 0) {
+            tokens.append(tokens.length() > 0 ? " " : "").append(word);
+            word.setLength(0);
+        }
+    }
+
+    private static boolean isCjk(int cp) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(cp);
+        return script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA
+                || script == Character.UnicodeScript.HANGUL;
+    }
+
+    /** Compact WebP preview of the uploaded region to store with its answer. */
+    public static byte[] thumbnail(Bitmap image) {
+        float scale = Math.min(1f, (float) THUMBNAIL_SIDE / Math.max(image.getWidth(), image.getHeight()));
+        Bitmap scaled = scale < 1f
+                ? Bitmap.createScaledBitmap(image, Math.max(1, Math.round(image.getWidth() * scale)),
+                        Math.max(1, Math.round(image.getHeight() * scale)), true)
+                : image;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        scaled.compress(AdaptiveEncoder.webpFormat(), THUMBNAIL_QUALITY, out);
+        if (scaled != image) {
+            scaled.recycle();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,106 @@
+package com.aisouti;
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-process store for encoded screenshots passed between the capture
+ * service and the answer screen. Only a handle travels through the Intent,
+ * so the image never crosses binder and is never re-encoded as a String.
+ *
+ * Entries are reference counted: {@link #put} hands one reference to the
+ * receiver of the handle, which {@link #claim}s it; further users
+ * {@link #acquire} and {@link #release} their own. Only entries nobody has
+ * claimed or acquired are ever evicted.
+ */
+public final class ImageHandoff {
+    private static final String TAG = "ImageHandoff";
+    public static final String EXTRA_HANDLE = "image_handle";
+
+    // Handles that were never picked up (e.g. the activity failed to start) are dropped oldest first
+    private static final int MAX_ENTRIES = 4;
+
+    private static final Map<Long, Entry> entries = new LinkedHashMap<>();
+    private static long nextHandle = 1;
+
+    public static final class Entry {
+        public final long handle;
+        public final byte[] bytes;
+        public final String mimeType;
+        private int refCount;
+        // The receiver of the handle picked it up
+        private boolean claimed;
+
+        private Entry(long handle, byte[] bytes, String mimeType) {
+            this.handle = handle;
+            this.bytes = bytes;
+            this.mimeType = mimeType;
+            this.refCount = 1;
+        }
+    }
+
+    private ImageHandoff() {}
+
+    /**
+     * Stores encoded image bytes and returns the handle to put in an Intent.
+     */
+    public static synchronized long put(byte[] bytes, String mimeType) {
+        long handle = nextHandle++;
+        entries.put(handle, new Entry(handle, bytes, mimeType));
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > MAX_ENTRIES && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.claimed || entry.refCount > 1) {
+                // Still shown or being uploaded
+                continue;
+            }
+            it.remove();
+            Log.d(TAG, "Evicted unclaimed screenshot " + entry.handle);
+        }
+        return handle;
+    }
+
+    /**
+     * Picks up the entry for a handle as its receiver, which owns the
+     * initial reference; the entry is no longer evicted. Returns null if it
+     * was released or evicted. Claiming again (e.g. after a configuration
+     * change) is a no-op.
+     */
+    public static synchronized Entry claim(long handle) {
+        Entry entry = entries.get(handle);
+        if (entry != null) {
+            entry.claimed = true;
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the entry for a handle without taking a reference, or null if
+     * it was released or evicted.
+     */
+    public static synchronized Entry get(long handle) {
+        return entries.get(handle);
+    }
+
+    /**
+     * Takes an additional reference, or returns null if the entry is gone.
+     */
+    public static synchronized Entry acquire(long handle) {
+        Entry entry = entries.get(handle);
+        if (entry != null) {
+            entry.refCount++;
+        }
+        return entry;
+    }
+
+    public static synchronized void release(long handle) {
+        Entry entry = entries.get(handle);
+        if (entry != null && --entry.refCount <= 0) {
+            entries.remove(handle);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.aisouti;
+
+import java.util.Arrays;
+
+/**
+ * Pixel preprocessing that runs on a captured screenshot before encoding.
+ * Works on plain ARGB int arrays without Android types, so it can be unit
+ * tested and benchmarked on a plain JVM.
+ *
+ * Stages, all optional: mask the floating button, find the content
+ * bounding box with row/column projection profiles (ignoring status and
+ * navigation bars), and grayscale + contrast-stretch the content.
+ */
+public class ImagePreprocessor {
+    // Luminance difference from the background that counts as content
+    private static final int CONTENT_THRESHOLD = 32;
+    // Minimum content pixels for a row/column to count, as a fraction of its length
+    private static final float MIN_CONTENT_FRACTION = 0.002f;
+    // Grid for the background histogram
+    private static final int SAMPLE_STEP = 4;
+    // Grid for the projection profiles, finer than any text stroke
+    private static final int PROFILE_STEP = 2;
+
+    private int excludeTop;
+    private int excludeBottom;
+    private int margin = 16;
+    private boolean enhanceText;
+
+    // Pooled profiles
+    private int[] rowProfile = new int[0];
+    private int[] colProfile = new int[0];
+    private final int[] histogram = new int[256];
+
+    /**
+     * Rows at the top and bottom that never contain content (status bar,
+     * navigation bar).
+     */
+    public void setExcludedBands(int top, int bottom) {
+        excludeTop = Math.max(0, top);
+        excludeBottom = Math.max(0, bottom);
+    }
+
+    /** Padding kept around the detected content. */
+    public void setMargin(int margin) {
+        this.margin = margin;
+    }
+
+    /** Convert the content to grayscale and stretch its contrast. */
+    public void setEnhanceText(boolean enhanceText) {
+        this.enhanceText = enhanceText;
+    }
+
+    /**
+     * Processes {@code pixels} in place and writes the content bounds as
+     * {left, top, right, bottom} (right/bottom exclusive) into {@code outBounds}.
+     *
+     * @param mask rectangle {left, top, right, bottom} to paint over with the
+     *             surrounding background, or null
+     */
+    public void process(int[] pixels, int width, int height, int[] mask, int[] outBounds) {
+        if (mask != null) {
+            maskRect(pixels, width, height, mask[0], mask[1], mask[2], mask[3]);
+        }
+        findContentBounds(pixels, width, height, outBounds);
+        if (enhanceText) {
+            enhance(pixels, width, outBounds);
+        }
+    }
+
+    /**
+     * Paints over a rectangle row by row with the pixel just outside it, so
+     * plain or striped backgrounds continue through the hole.
+     */
+    public static void maskRect(int[] pixels, int width, int height,
+                                int left, int top, int right, int bottom) {
+        left = Math.max(0, left);
+        top = Math.max(0, top);
+        right = Math.min(width, right);
+        bottom = Math.min(height, bottom);
+        if (left >= right || top >= bottom) {
+            return;
+        }
+        for (int y = top; y < bottom; y++) {
+            int row = y * width;
+            int fill;
+            if (left > 0) {
+                fill = pixels[row + left - 1];
+            } else if (right < width) {
+                fill = pixels[row + right];
+            } else {
+                fill = 0xFFFFFFFF;
+            }
+            for (int x = left; x < right; x++) {
+                pixels[row + x] = fill;
+            }
+        }
+    }
+
+    /**
+     * Finds the bounding box of everything that differs from the dominant
+     * background luminance, using one pass that builds both row and column
+     * projection profiles.
+     */
+    public void findContentBounds(int[] pixels, int width, int height, int[] outBounds) {
+        int top = Math.min(excludeTop, height);
+        int bottom = Math.max(top, height - excludeBottom);
+
+        if (rowProfile.length < height) {
+            rowProfile = new int[height];
+        }
+        if (colProfile.length < width) {
+            colProfile = new int[width];
+        }
+        Arrays.fill(rowProfile, 0, height, 0);
+        Arrays.fill(colProfile, 0, width, 0);
+
+        int background = backgroundLuma(pixels, width, top, bottom);
+
+        for (int y = top; y < bottom; y += PROFILE_STEP) {
+            int row = y * width;
+            int count = 0;
+            for (int x = 0; x < width; x += PROFILE_STEP) {
+                if (Math.abs(luma(pixels[row + x]) - background) > CONTENT_THRESHOLD) {
+                    count++;
+                    colProfile[x]++;
+                }
+            }
+            rowProfile[y] = count;
+        }
+
+        int minRow = Math.max(2, (int) (width / PROFILE_STEP * MIN_CONTENT_FRACTION));
+        int minCol = Math.max(2, (int) ((bottom - top) / PROFILE_STEP * MIN_CONTENT_FRACTION));
+
+        int contentTop = -1;
+        int contentBottom = -1;
+        for (int y = top; y < bottom; y += PROFILE_STEP) {
+            if (rowProfile[y] >= minRow) {
+                if (contentTop < 0) {
+                    contentTop = y;
+                }
+                contentBottom = y + PROFILE_STEP;
+            }
+        }
+        int contentLeft = -1;
+        int contentRight = -1;
+        for (int x = 0; x < width; x += PROFILE_STEP) {
+            if (colProfile[x] >= minCol) {
+                if (contentLeft < 0) {
+                    contentLeft = x;
+                }
+                contentRight = x + PROFILE_STEP;
+            }
+        }
+
+        if (contentTop < 0 || contentLeft < 0) {
+            // Nothing detected, keep everything between the bars
+            outBounds[0] = 0;
+            outBounds[1] = top;
+            outBounds[2] = width;
+            outBounds[3] = bottom;
+            return;
+        }
+        outBounds[0] = Math.max(0, contentLeft - margin);
+        outBounds[1] = Math.max(top, contentTop - margin);
+        outBounds[2] = Math.min(width, contentRight + margin);
+        outBounds[3] = Math.min(bottom, contentBottom + margin);
+    }
+
+    // Most common luminance on a sparse grid
+    private int backgroundLuma(int[] pixels, int width, int top, int bottom) {
+        Arrays.fill(histogram, 0);
+        for (int y = top; y < bottom; y += SAMPLE_STEP) {
+            int row = y * width;
+            for (int x = 0; x < width; x += SAMPLE_STEP) {
+                histogram[luma(pixels[row + x])]++;
+            }
+        }
+        int best = 255;
+        for (int i = 0; i < 256; i++) {
+            if (histogram[i] > histogram[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Grayscale plus a 1%/99% percentile contrast stretch inside the bounds.
+     */
+    private void enhance(int[] pixels, int width, int[] bounds) {
+        Arrays.fill(histogram, 0);
+        int total = 0;
+        for (int y = bounds[1]; y < bounds[3]; y++) {
+            int row = y * width;
+            for (int x = bounds[0]; x < bounds[2]; x++) {
+                int l = luma(pixels[row + x]);
+                pixels[row + x] = l;
+                histogram[l]++;
+                total++;
+            }
+        }
+        if (total == 0) {
+            return;
+        }
+
+        int lo = percentile(total / 100);
+        int hi = percentile(total - 1 - total / 100);
+        int range = Math.max(1, hi - lo);
+        for (int y = bounds[1]; y < bounds[3]; y++) {
+            int row = y * width;
+            for (int x = bounds[0]; x < bounds[2]; x++) {
+                int v = (pixels[row + x] - lo) * 255 / range;
+                v = v < 0 ? 0 : Math.min(v, 255);
+                pixels[row + x] = 0xFF000000 | v << 16 | v << 8 | v;
+            }
+        }
+    }
+
+    private int percentile(int rank) {
+        int seen = 0;
+        for (int i = 0; i < 256; i++) {
+            seen += histogram[i];
+            if (seen > rank) {
+                return i;
+            }
+        }
+        return 255;
+    }
+
+    public static int luma(int argb) {
+        int r = (argb >> 16) & 0xFF;
+        int g = (argb >> 8) & 0xFF;
+        int b = argb & 0xFF;
+        return (r * 77 + g * 150 + b * 29) >> 8;
+    }
+}
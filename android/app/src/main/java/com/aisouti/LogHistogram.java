@@ -0,0 +1,114 @@
+package com.aisouti;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Fixed-memory histogram of non-negative longs with log-linear buckets in
+ * the style of HdrHistogram: every power of two is split into
+ * {@link #SUB_BUCKETS} linear buckets, so any recorded value is reported
+ * within 1/{@link #SUB_BUCKETS} (12.5%) of its true value, from 0 up to
+ * 2^{@link #MAX_EXPONENT}.
+ *
+ * Not thread safe; callers synchronize.
+ */
+public class LogHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+
+    private final long[] counts = new long[(MAX_EXPONENT + 1) * SUB_BUCKETS];
+    private long count;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private double sum;
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts[bucketIndex(value)]++;
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /** Value at the given percentile (0-100), as the upper bound of its bucket. */
+    public long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, bucketUpperBound(i));
+            }
+        }
+        return max;
+    }
+
+    public void reset() {
+        java.util.Arrays.fill(counts, 0);
+        count = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+        sum = 0;
+    }
+
+    // Values below SUB_BUCKETS get exact buckets, above that the top SUB_BUCKET_BITS bits select the bucket
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return (MAX_EXPONENT + 1) * SUB_BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) - SUB_BUCKETS;
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        int sub = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("count", count);
+        json.put("min", count == 0 ? 0 : min);
+        json.put("mean", Math.round(mean()));
+        json.put("p50", percentile(50));
+        json.put("p90", percentile(90));
+        json.put("p99", percentile(99));
+        json.put("max", max);
+        // Non-empty buckets as [upper bound, count]
+        JSONArray buckets = new JSONArray();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                buckets.put(new JSONArray().put(bucketUpperBound(i)).put(counts[i]));
+            }
+        }
+        json.put("buckets", buckets);
+        return json;
+    }
+}
@@ -2,15 +2,28 @@ package com.aisouti;
 
 import android.Manifest;
 import android.app.AlertDialog;
+import android.content.ClipData;
+import android.content.ClipboardManager;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.Settings;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.util.Log;
+import android.view.View;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
+import android.widget.Spinner;
 import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -18,17 +31,52 @@ import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.RecyclerView;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.List;
 
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "MainActivity";
     private static final int OVERLAY_PERMISSION_REQUEST = 1001;
     private static final int NOTIFICATION_PERMISSION_REQUEST = 1002;
 
+    // Capture scale choices, 0 lets the capture service pick by device class
+    private static final float[] CAPTURE_SCALES = {0f, 1f, 0.75f, 0.5f};
+    private static final String[] CAPTURE_SCALE_LABELS = {"自动（按设备）", "100%", "75%", "50%"};
+    private static final long HISTORY_SEARCH_DELAY_MS = 150;
+    private static final int HISTORY_THUMBNAIL_MAX_DP = 160;
+
     private Switch floatingSwitch;
     private EditText apiKeyInput;
     private EditText baseUrlInput;
     private EditText modelInput;
+    private EditText extraEndpointsInput;
+    private EditText uploadKbBudgetInput;
+    private EditText uploadTokenBudgetInput;
+    private Switch autoSubmitSwitch;
+    private Switch enhanceTextSwitch;
+    private Switch hedgeSwitch;
+    private Switch quickAnswerSwitch;
+    private Switch overlayAnswerSwitch;
+    private EditText hedgeModelInput;
+    private Spinner captureScaleSpinner;
     private TextView statusText;
+    private EditText historySearchInput;
+    private LinearLayout historyResults;
+    private TextView historyEmptyText;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable historySearchTask = this::searchHistory;
+    // Results of an older query that arrive late are dropped
+    private int historySearchSeq;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -46,7 +94,38 @@ public class MainActivity extends AppCompatActivity {
         apiKeyInput = findViewById(R.id.api_key_input);
         baseUrlInput = findViewById(R.id.base_url_input);
         modelInput = findViewById(R.id.model_input);
+        extraEndpointsInput = findViewById(R.id.extra_endpoints_input);
+        uploadKbBudgetInput = findViewById(R.id.upload_kb_budget_input);
+        uploadTokenBudgetInput = findViewById(R.id.upload_token_budget_input);
+        autoSubmitSwitch = findViewById(R.id.auto_submit_switch);
+        enhanceTextSwitch = findViewById(R.id.enhance_text_switch);
+        hedgeSwitch = findViewById(R.id.hedge_switch);
+        quickAnswerSwitch = findViewById(R.id.quick_answer_switch);
+        overlayAnswerSwitch = findViewById(R.id.overlay_answer_switch);
+        hedgeModelInput = findViewById(R.id.hedge_model_input);
+        captureScaleSpinner = findViewById(R.id.capture_scale_spinner);
+        ArrayAdapter<String> scaleAdapter = new ArrayAdapter<>(
+                this, android.R.layout.simple_spinner_item, CAPTURE_SCALE_LABELS);
+        scaleAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        captureScaleSpinner.setAdapter(scaleAdapter);
         statusText = findViewById(R.id.status_text);
+        historySearchInput = findViewById(R.id.history_search_input);
+        historyResults = findViewById(R.id.history_results);
+        historyEmptyText = findViewById(R.id.history_empty_text);
+        historySearchInput.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                // Wait for a pause in typing
+                mainHandler.removeCallbacks(historySearchTask);
+                mainHandler.postDelayed(historySearchTask, HISTORY_SEARCH_DELAY_MS);
+            }
+        });
 
         Button saveButton = findViewById(R.id.save_button);
         saveButton.setOnClickListener(v -> saveSettings());
@@ -88,6 +167,10 @@ public class MainActivity extends AppCompatActivity {
             info.append(hasNotif ? "已授予 ✓" : "未授予 ✗").append("\n\n");
         }
 
+        AnswerClient answerClient = MainApplication.from(this).getAnswerClient();
+        info.append(answerClient.getEndpointPool().describe()).append("\n\n");
+        info.append(answerClient.getHedgeStats().describe()).append("\n\n");
+
         info.append("点击「授予悬浮窗权限」按钮手动开启权限");
 
         new AlertDialog.Builder(this)
@@ -98,15 +181,70 @@ public class MainActivity extends AppCompatActivity {
                     Uri.parse("package:" + getPackageName()));
                 startActivityForResult(intent, OVERLAY_PERMISSION_REQUEST);
             })
+            .setNeutralButton("性能统计", (d, w) -> showPerformanceDialog())
+            .setNegativeButton("关闭", null)
+            .show();
+    }
+
+    // Stage latencies in ms, payload in KB, heap in MB; see PerfTracer
+    private void showPerformanceDialog() {
+        new AlertDialog.Builder(this)
+            .setTitle("性能统计")
+            .setMessage(PerfTracer.describe())
+            .setPositiveButton("导出 JSON", (d, w) -> exportPerformance())
+            .setNeutralButton("清空", (d, w) -> {
+                PerfTracer.reset();
+                Toast.makeText(this, "已清空性能统计", Toast.LENGTH_SHORT).show();
+            })
             .setNegativeButton("关闭", null)
             .show();
     }
 
+    private void exportPerformance() {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+            json.put("sdk", Build.VERSION.SDK_INT);
+            json.put("version", BuildConfig.VERSION_NAME);
+            json.put("exported_at", System.currentTimeMillis());
+            json.put("histograms", PerfTracer.toJson());
+            String text = json.toString(2);
+
+            File file = new File(getExternalFilesDir(null), "perf-" + System.currentTimeMillis() + ".json");
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(text.getBytes(StandardCharsets.UTF_8));
+            }
+            ClipboardManager clipboard = (ClipboardManager) getSystemService(CLIPBOARD_SERVICE);
+            clipboard.setPrimaryClip(ClipData.newPlainText("perf", text));
+            Toast.makeText(this, "已导出并复制到剪贴板：" + file.getAbsolutePath(), Toast.LENGTH_LONG).show();
+        } catch (Exception e) {
+            Log.e(TAG, "Error exporting performance stats", e);
+            Toast.makeText(this, "导出失败: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+        }
+    }
+
     private void loadSettings() {
         android.content.SharedPreferences prefs = getSharedPreferences("settings", MODE_PRIVATE);
         apiKeyInput.setText(prefs.getString("api_key", ""));
         baseUrlInput.setText(prefs.getString("base_url", "https://api.openai.com/v1"));
         modelInput.setText(prefs.getString("model", "gpt-4o"));
+        extraEndpointsInput.setText(prefs.getString("extra_endpoints", ""));
+        int kbBudget = prefs.getInt("upload_kb_budget", 400);
+        uploadKbBudgetInput.setText(kbBudget > 0 ? String.valueOf(kbBudget) : "");
+        int tokenBudget = prefs.getInt("upload_token_budget", 0);
+        uploadTokenBudgetInput.setText(tokenBudget > 0 ? String.valueOf(tokenBudget) : "");
+        autoSubmitSwitch.setChecked(prefs.getBoolean("auto_submit", false));
+        enhanceTextSwitch.setChecked(prefs.getBoolean("enhance_text", false));
+        hedgeSwitch.setChecked(prefs.getBoolean("hedge_enabled", false));
+        quickAnswerSwitch.setChecked(prefs.getBoolean("quick_answer", false));
+        overlayAnswerSwitch.setChecked(prefs.getBoolean("overlay_answer", true));
+        hedgeModelInput.setText(prefs.getString("hedge_model", ""));
+        float captureScale = prefs.getFloat("capture_scale", 0f);
+        for (int i = 0; i < CAPTURE_SCALES.length; i++) {
+            if (CAPTURE_SCALES[i] == captureScale) {
+                captureScaleSpinner.setSelection(i);
+            }
+        }
     }
 
     private void saveSettings() {
@@ -132,11 +270,30 @@ public class MainActivity extends AppCompatActivity {
                 .putString("api_key", apiKey)
                 .putString("base_url", baseUrl)
                 .putString("model", model)
+                .putString("extra_endpoints", extraEndpointsInput.getText().toString().trim())
+                .putInt("upload_kb_budget", parseBudget(uploadKbBudgetInput))
+                .putInt("upload_token_budget", parseBudget(uploadTokenBudgetInput))
+                .putBoolean("auto_submit", autoSubmitSwitch.isChecked())
+                .putBoolean("enhance_text", enhanceTextSwitch.isChecked())
+                .putBoolean("hedge_enabled", hedgeSwitch.isChecked())
+                .putBoolean("quick_answer", quickAnswerSwitch.isChecked())
+                .putBoolean("overlay_answer", overlayAnswerSwitch.isChecked())
+                .putString("hedge_model", hedgeModelInput.getText().toString().trim())
+                .putFloat("capture_scale", CAPTURE_SCALES[captureScaleSpinner.getSelectedItemPosition()])
                 .apply();
 
         Toast.makeText(this, "设置已保存", Toast.LENGTH_SHORT).show();
     }
 
+    // Empty or invalid means no limit
+    private int parseBudget(EditText input) {
+        try {
+            return Math.max(0, Integer.parseInt(input.getText().toString().trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     private void setupListeners() {
         floatingSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
             if (isChecked) {
@@ -242,9 +399,89 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    private void searchHistory() {
+        int seq = ++historySearchSeq;
+        MainApplication.from(this).getHistoryStore().searchAsync(
+            historySearchInput.getText().toString(), entries -> {
+                if (seq == historySearchSeq && !isFinishing()) {
+                    showHistoryResults(entries);
+                }
+            });
+    }
+
+    private void showHistoryResults(List<HistoryStore.Entry> entries) {
+        historyResults.removeAllViews();
+        historyEmptyText.setVisibility(entries.isEmpty() ? View.VISIBLE : View.GONE);
+        historyEmptyText.setText(historySearchInput.length() > 0 ? "没有找到相关记录" : "暂无历史记录");
+        int padding = Math.round(8 * getResources().getDisplayMetrics().density);
+        DateFormat dateFormat = android.text.format.DateFormat.getMediumDateFormat(this);
+        for (HistoryStore.Entry entry : entries) {
+            TextView row = new TextView(this);
+            row.setText(entry.summary.replace('\n', ' ') + "\n" + dateFormat.format(new Date(entry.createdAt))
+                + " · " + entry.model);
+            row.setTextSize(14);
+            row.setTextColor(getColor(R.color.text_primary));
+            row.setMaxLines(3);
+            row.setEllipsize(TextUtils.TruncateAt.END);
+            row.setPadding(0, padding, 0, padding);
+            row.setOnClickListener(v -> showHistoryEntry(entry.id));
+            historyResults.addView(row);
+        }
+    }
+
+    private void showHistoryEntry(long id) {
+        HistoryStore store = MainApplication.from(this).getHistoryStore();
+        store.getAsync(id, entry -> {
+            if (entry == null || isFinishing()) {
+                return;
+            }
+            store.touch(id);
+            LinearLayout content = new LinearLayout(this);
+            content.setOrientation(LinearLayout.VERTICAL);
+            int padding = Math.round(20 * getResources().getDisplayMetrics().density);
+            content.setPadding(padding, padding / 2, padding, 0);
+            if (entry.thumbnail != null) {
+                ImageView thumbnail = new ImageView(this);
+                thumbnail.setImageBitmap(BitmapFactory.decodeByteArray(entry.thumbnail, 0, entry.thumbnail.length));
+                thumbnail.setAdjustViewBounds(true);
+                // The answer list scrolls below it
+                thumbnail.setMaxHeight(Math.round(HISTORY_THUMBNAIL_MAX_DP * getResources().getDisplayMetrics().density));
+                content.addView(thumbnail);
+            }
+            RecyclerView answerList = new RecyclerView(this);
+            answerList.setPadding(0, padding / 2, 0, 0);
+            content.addView(answerList, new LinearLayout.LayoutParams(
+                LinearLayout.LayoutParams.MATCH_PARENT, LinearLayout.LayoutParams.WRAP_CONTENT));
+            // Parsed and measured on the renderer thread, like a live answer
+            AnswerRenderer renderer = new AnswerRenderer(answerList);
+            renderer.setText(entry.answer);
+
+            new AlertDialog.Builder(this)
+                .setTitle("历史解答")
+                .setView(content)
+                .setOnDismissListener(d -> renderer.release())
+                .setPositiveButton("复制答案", (d, w) -> {
+                    ClipboardManager clipboard = (ClipboardManager) getSystemService(CLIPBOARD_SERVICE);
+                    clipboard.setPrimaryClip(ClipData.newPlainText("answer", entry.answer));
+                    Toast.makeText(this, "已复制", Toast.LENGTH_SHORT).show();
+                })
+                .setNegativeButton("关闭", null)
+                .show();
+        });
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
         updatePermissionStatus();
+        // Pick up answers given while the app was in the background
+        searchHistory();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // A debounced search must not run after the activity is gone
+        mainHandler.removeCallbacks(historySearchTask);
     }
 }
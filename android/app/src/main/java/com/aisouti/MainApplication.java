@@ -1,11 +1,49 @@
 package com.aisouti;
 
 import android.app.Application;
+import android.content.Context;
+
+import java.io.File;
 
 public class MainApplication extends Application {
+    private ApiClient apiClient;
+    private AnswerClient answerClient;
+    private AnswerCache answerCache;
+    private RequestScheduler requestScheduler;
+    private HistoryStore historyStore;
 
     @Override
     public void onCreate() {
         super.onCreate();
+        apiClient = new ApiClient();
+        answerClient = new AnswerClient(apiClient);
+        answerCache = new AnswerCache(new File(getCacheDir(), "answers"));
+        // A few answers may stream at once (overlapping screens, follow-up requests)
+        requestScheduler = new RequestScheduler(3);
+        historyStore = new HistoryStore(this);
+    }
+
+    public static MainApplication from(Context context) {
+        return (MainApplication) context.getApplicationContext();
+    }
+
+    public ApiClient getApiClient() {
+        return apiClient;
+    }
+
+    public AnswerClient getAnswerClient() {
+        return answerClient;
+    }
+
+    public AnswerCache getAnswerCache() {
+        return answerCache;
+    }
+
+    public RequestScheduler getRequestScheduler() {
+        return requestScheduler;
+    }
+
+    public HistoryStore getHistoryStore() {
+        return historyStore;
     }
 }
@@ -0,0 +1,404 @@
+package com.aisouti;
+
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Gravity;
+import android.view.LayoutInflater;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.WindowManager;
+import android.widget.TextView;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Answer panel over the current app, expanded by {@link FloatingWindowService}
+ * when a capture finishes, so the answer streams in without starting
+ * {@link CropAndAnswerActivity} or leaving the quiz app. The whole screenshot
+ * is answered through the same {@link AnswerPipeline} as the answer screen,
+ * quick answer included; "裁剪" hands the screenshot over to that screen to
+ * select a region.
+ *
+ * The panel opens on the half of the screen away from the floating button,
+ * at a compact height that leaves most of the question visible; "放大"
+ * toggles a taller panel and the header drags it up or down.
+ *
+ * Views are inflated on expand and dropped on collapse, so while only the
+ * floating button is shown the panel holds no views, threads or bitmaps.
+ * Main thread only, except where noted.
+ */
+public class OverlayAnswerPanel {
+    private static final String TAG = "OverlayAnswerPanel";
+    // Fractions of the screen height the panel covers
+    private static final float COMPACT_HEIGHT_FRACTION = 0.3f;
+    private static final float TALL_HEIGHT_FRACTION = 0.55f;
+    // Movement before a touch on the header counts as a drag
+    private static final int DRAG_SLOP_PX = 10;
+
+    // System.nanoTime() when a panel was last removed from the screen, Long.MAX_VALUE while one is shown
+    private static volatile long hiddenAtNanos;
+
+    private final Context context;
+    private final WindowManager windowManager;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Views, null while collapsed
+    private View panel;
+    private WindowManager.LayoutParams params;
+    private TextView statusText;
+    private TextView sizeButton;
+    private AnswerRenderer renderer;
+
+    // Kept across answers: the size the user chose
+    private boolean tall;
+
+    // Screenshot whose reference the panel owns, 0 for none
+    private long imageHandle;
+    private RequestScheduler.Handle request;
+    private RequestScheduler.Handle quickRequest;
+
+    private final StringBuilder streamedAnswer = new StringBuilder();
+    private final AtomicBoolean answerUpdatePending = new AtomicBoolean();
+
+    public OverlayAnswerPanel(Context context, WindowManager windowManager) {
+        this.context = context;
+        this.windowManager = windowManager;
+    }
+
+    /**
+     * Expands the panel and answers the screenshot behind {@code handle},
+     * taking over its {@link ImageHandoff} reference. A running answer is
+     * cancelled.
+     */
+    public void show(long handle) {
+        ImageHandoff.Entry image = ImageHandoff.claim(handle);
+        if (image == null) {
+            Log.w(TAG, "Screenshot " + handle + " is gone");
+            return;
+        }
+        cancelRequest();
+        releaseImage();
+        imageHandle = handle;
+        // An update of the cancelled request may have been dropped while pending
+        answerUpdatePending.set(false);
+        if (!expand()) {
+            releaseImage();
+            return;
+        }
+
+        // Settings are read for each answer, the panel outlives changes to them
+        AnswerPipeline pipeline = new AnswerPipeline(context, AnswerPipeline.Settings.load(context));
+        AnswerPipeline.Settings settings = pipeline.getSettings();
+        if (settings.apiKey.isEmpty()) {
+            statusText.setText("AI 解答");
+            renderer.setText("请先在主页设置 API Key");
+            return;
+        }
+        PerfTracer.Trace trace = PerfTracer.take(handle);
+        if (trace == null) {
+            trace = PerfTracer.begin();
+        }
+        trace.mark(PerfTracer.SUBMIT);
+        statusText.setText("正在解答 · " + settings.model);
+        renderer.setText("AI 正在分析题目...");
+
+        PerfTracer.Trace requestTrace = trace;
+        long start = SystemClock.elapsedRealtime();
+        RequestScheduler scheduler = MainApplication.from(context).getRequestScheduler();
+        request = scheduler.submit("Overlay answer " + handle, h -> answer(h, pipeline, image, requestTrace, start));
+        if (settings.quickAnswer) {
+            quickRequest = scheduler.submit("Overlay quick answer " + handle, h -> pipeline.quickAnswer(h,
+                    () -> prepareUpload(h, pipeline, image), requestTrace, false,
+                    answer -> post(h, () -> showQuickAnswer(answer, start))));
+        }
+    }
+
+    /** Cancels the answer, removes the views and releases the screenshot. */
+    public void collapse() {
+        cancelRequest();
+        releaseImage();
+        if (panel == null) {
+            return;
+        }
+        renderer.release();
+        try {
+            windowManager.removeView(panel);
+        } catch (Exception e) {
+            Log.e(TAG, "Error removing answer panel", e);
+        }
+        setShown(false);
+        panel = null;
+        params = null;
+        statusText = null;
+        sizeButton = null;
+        renderer = null;
+    }
+
+    private boolean expand() {
+        if (panel != null) {
+            return true;
+        }
+        View view = LayoutInflater.from(context).inflate(R.layout.overlay_answer_panel, null);
+        int screenHeight = context.getResources().getDisplayMetrics().heightPixels;
+        WindowManager.LayoutParams lp = new WindowManager.LayoutParams(
+                WindowManager.LayoutParams.MATCH_PARENT,
+                panelHeight(screenHeight, tall),
+                FloatingWindowService.overlayType(),
+                WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE,
+                PixelFormat.TRANSLUCENT);
+        lp.gravity = gravityAwayFrom(FloatingWindowService.getButtonBounds(), screenHeight);
+        try {
+            windowManager.addView(view, lp);
+        } catch (Exception e) {
+            Log.e(TAG, "Error showing answer panel", e);
+            return false;
+        }
+        setShown(true);
+        panel = view;
+        params = lp;
+        statusText = view.findViewById(R.id.overlay_status_text);
+        sizeButton = view.findViewById(R.id.overlay_size_button);
+        sizeButton.setText(tall ? "缩小" : "放大");
+        renderer = new AnswerRenderer(view.findViewById(R.id.answer_list));
+        sizeButton.setOnClickListener(v -> toggleSize());
+        view.findViewById(R.id.overlay_crop_button).setOnClickListener(v -> openCropScreen());
+        view.findViewById(R.id.overlay_collapse_button).setOnClickListener(v -> collapse());
+        view.findViewById(R.id.overlay_header).setOnTouchListener(new DragListener());
+        return true;
+    }
+
+    static void setShown(boolean shown) {
+        hiddenAtNanos = shown ? Long.MAX_VALUE : System.nanoTime();
+    }
+
+    /**
+     * Whether a screen frame composed at {@code timestampNanos} may show the
+     * panel: it is shown now, or the frame predates its removal. Timestamps
+     * of virtual display frames use the {@link System#nanoTime()} clock.
+     * Any thread.
+     */
+    static boolean mayBeInFrame(long timestampNanos) {
+        return timestampNanos <= hiddenAtNanos;
+    }
+
+    /**
+     * Vertical gravity that keeps the panel on the other half of the screen
+     * than the floating button, which usually sits next to the question.
+     */
+    static int gravityAwayFrom(Rect button, int screenHeight) {
+        if (button != null && button.centerY() > screenHeight / 2) {
+            return Gravity.TOP;
+        }
+        return Gravity.BOTTOM;
+    }
+
+    static int panelHeight(int screenHeight, boolean tall) {
+        return (int) (screenHeight * (tall ? TALL_HEIGHT_FRACTION : COMPACT_HEIGHT_FRACTION));
+    }
+
+    /** Offset from the anchored edge, kept so the whole panel stays on screen. */
+    static int clampOffset(int y, int panelHeight, int screenHeight) {
+        return Math.max(0, Math.min(y, screenHeight - panelHeight));
+    }
+
+    private void toggleSize() {
+        tall = !tall;
+        int screenHeight = context.getResources().getDisplayMetrics().heightPixels;
+        params.height = panelHeight(screenHeight, tall);
+        params.y = clampOffset(params.y, params.height, screenHeight);
+        sizeButton.setText(tall ? "缩小" : "放大");
+        updateLayout();
+    }
+
+    private void updateLayout() {
+        try {
+            windowManager.updateViewLayout(panel, params);
+        } catch (Exception e) {
+            Log.e(TAG, "Error updating answer panel", e);
+        }
+    }
+
+    // Moves the panel up or down while the header is dragged; taps still reach the header buttons
+    private final class DragListener implements View.OnTouchListener {
+        private int initialY;
+        private float initialTouchY;
+        private boolean dragging;
+
+        @Override
+        public boolean onTouch(View v, MotionEvent event) {
+            if (params == null) {
+                return false;
+            }
+            switch (event.getAction()) {
+                case MotionEvent.ACTION_DOWN:
+                    initialY = params.y;
+                    initialTouchY = event.getRawY();
+                    dragging = false;
+                    return true;
+
+                case MotionEvent.ACTION_MOVE:
+                    float deltaY = event.getRawY() - initialTouchY;
+                    if (!dragging && Math.abs(deltaY) > DRAG_SLOP_PX) {
+                        dragging = true;
+                    }
+                    if (dragging) {
+                        // The offset grows away from the anchored edge
+                        int y = initialY + (int) (params.gravity == Gravity.TOP ? deltaY : -deltaY);
+                        params.y = clampOffset(y, params.height,
+                                context.getResources().getDisplayMetrics().heightPixels);
+                        updateLayout();
+                    }
+                    return true;
+
+                default:
+                    return dragging;
+            }
+        }
+    }
+
+    // Continues in the answer screen, which takes over the screenshot reference
+    private void openCropScreen() {
+        long handle = imageHandle;
+        if (handle == 0 || ImageHandoff.get(handle) == null) {
+            collapse();
+            return;
+        }
+        imageHandle = 0;
+        collapse();
+        Intent intent = new Intent(context, CropAndAnswerActivity.class);
+        intent.putExtra(ImageHandoff.EXTRA_HANDLE, handle);
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        context.startActivity(intent);
+    }
+
+    private void cancelRequest() {
+        if (request != null) {
+            request.cancel();
+            request = null;
+        }
+        if (quickRequest != null) {
+            quickRequest.cancel();
+            quickRequest = null;
+        }
+    }
+
+    private void releaseImage() {
+        if (imageHandle != 0) {
+            ImageHandoff.release(imageHandle);
+            imageHandle = 0;
+        }
+    }
+
+    // Runs on a request thread
+    private void answer(RequestScheduler.Handle handle, AnswerPipeline pipeline, ImageHandoff.Entry image,
+                        PerfTracer.Trace trace, long start) {
+        String model = pipeline.getSettings().model;
+        // Never follows another request, but lets the answer screen follow this one
+        pipeline.answer(handle, () -> prepareUpload(handle, pipeline, image), trace, false,
+                new AnswerPipeline.Callback() {
+                    @Override
+                    public void onCached(String answer) {
+                        post(handle, () -> showAnswer(answer, "缓存答案"));
+                    }
+
+                    @Override
+                    public void onRequestSent() {
+                        synchronized (streamedAnswer) {
+                            streamedAnswer.setLength(0);
+                        }
+                    }
+
+                    @Override
+                    public void onDelta(String delta) {
+                        onAnswerDelta(handle, delta);
+                    }
+
+                    @Override
+                    public void onComplete(String answer) {
+                        long completeMs = SystemClock.elapsedRealtime() - start;
+                        post(handle, () -> showAnswer(answer,
+                                String.format(Locale.US, "%s · %.1f 秒", model, completeMs / 1000f)));
+                    }
+
+                    @Override
+                    public void onError(String message) {
+                        post(handle, () -> showError(message));
+                    }
+                });
+    }
+
+    // Runs on a request thread: the whole screenshot, decoded and encoded once for both requests
+    private static AnswerPipeline.Upload prepareUpload(RequestScheduler.Handle handle, AnswerPipeline pipeline,
+                                                      ImageHandoff.Entry image) {
+        return handle.isCancelled() ? null : pipeline.prepare(image, null, null);
+    }
+
+    // Runs on a network thread for each content delta of the winning attempt
+    private void onAnswerDelta(RequestScheduler.Handle handle, String delta) {
+        synchronized (streamedAnswer) {
+            // A superseding request may already be reusing the buffer
+            if (handle.isCancelled()) {
+                return;
+            }
+            streamedAnswer.append(delta);
+        }
+        // Coalesce deltas so the panel is updated at most once per frame
+        if (answerUpdatePending.compareAndSet(false, true)) {
+            post(handle, () -> {
+                if (renderer == null) {
+                    answerUpdatePending.set(false);
+                    return;
+                }
+                panel.postOnAnimation(() -> {
+                    answerUpdatePending.set(false);
+                    if (renderer != null && !handle.isCancelled()) {
+                        synchronized (streamedAnswer) {
+                            renderer.setText(streamedAnswer);
+                        }
+                    }
+                });
+            });
+        }
+    }
+
+    // Posts to the main thread unless the request was cancelled in the meantime
+    private void post(RequestScheduler.Handle handle, Runnable action) {
+        mainHandler.post(() -> {
+            if (!handle.isCancelled()) {
+                action.run();
+            }
+        });
+    }
+
+    private void showAnswer(String answer, String status) {
+        request = null;
+        if (renderer != null) {
+            statusText.setText(status);
+            renderer.setText(answer);
+        }
+    }
+
+    private void showQuickAnswer(String answer, long start) {
+        if (request == null || renderer == null) {
+            // The full answer is already shown
+            return;
+        }
+        long quickMs = SystemClock.elapsedRealtime() - start;
+        statusText.setText(String.format(Locale.US, "答案：%s（%.1f 秒）", answer.trim(), quickMs / 1000f));
+    }
+
+    private void showError(String message) {
+        request = null;
+        if (renderer != null) {
+            statusText.setText("解答失败");
+            renderer.setText(message);
+        }
+    }
+}
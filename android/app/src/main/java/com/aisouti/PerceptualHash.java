@@ -0,0 +1,114 @@
+package com.aisouti;
+
+import android.graphics.Bitmap;
+
+/**
+ * Difference hashes (dHash) of an image at two scales, one bit per
+ * horizontally adjacent pair of a luminance grid of area averages.
+ *
+ * The 64-bit coarse hash of a 9x8 grid only sees the layout: recaptures of
+ * the same question (re-encoded, slightly scrolled or rescaled) differ in
+ * only a few bits, but so do different questions on the same quiz
+ * template. The fine hash of a 36x64 grid, about one character by one text
+ * line on a phone screen, tells those apart.
+ */
+public final class PerceptualHash {
+    private static final int COLS = 9;
+    private static final int ROWS = 8;
+    // Each coarse cell is split into 4x8 fine cells
+    private static final int FINE_COLS = COLS * 4;
+    private static final int FINE_ROWS = ROWS * 8;
+    /** Bits of a fine hash. */
+    public static final int FINE_BITS = (FINE_COLS - 1) * FINE_ROWS;
+    // Rows and columns sampled per fine grid cell
+    private static final int SAMPLES_PER_CELL = 8;
+
+    private PerceptualHash() {}
+
+    /**
+     * Row-major luminance grid of {@code 36x64} area averages, the input of
+     * {@link #coarse} and {@link #fineHash}.
+     */
+    public static int[] grid(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int stepX = Math.max(1, width / (FINE_COLS * SAMPLES_PER_CELL));
+        int stepY = Math.max(1, height / (FINE_ROWS * SAMPLES_PER_CELL));
+
+        long[] sums = new long[FINE_COLS * FINE_ROWS];
+        int[] counts = new int[FINE_COLS * FINE_ROWS];
+        int[] row = new int[width];
+        for (int y = 0; y < height; y += stepY) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            int cell = y * FINE_ROWS / height * FINE_COLS;
+            for (int x = 0; x < width; x += stepX) {
+                int i = cell + x * FINE_COLS / width;
+                sums[i] += ImagePreprocessor.luma(row[x]);
+                counts[i]++;
+            }
+        }
+
+        int[] grid = new int[FINE_COLS * FINE_ROWS];
+        for (int i = 0; i < grid.length; i++) {
+            grid[i] = counts[i] == 0 ? 0 : (int) (sums[i] / counts[i]);
+        }
+        return grid;
+    }
+
+    /** 9x8 grid of block averages of a fine {@link #grid}. */
+    public static int[] coarse(int[] grid) {
+        int blockCols = FINE_COLS / COLS;
+        int blockRows = FINE_ROWS / ROWS;
+        int[] coarse = new int[COLS * ROWS];
+        for (int y = 0; y < FINE_ROWS; y++) {
+            for (int x = 0; x < FINE_COLS; x++) {
+                coarse[y / blockRows * COLS + x / blockCols] += grid[y * FINE_COLS + x];
+            }
+        }
+        for (int i = 0; i < coarse.length; i++) {
+            coarse[i] /= blockCols * blockRows;
+        }
+        return coarse;
+    }
+
+    /** Hash of a row-major 9x8 luminance grid. */
+    public static long dHash(int[] grid) {
+        long hash = 0;
+        for (int y = 0; y < ROWS; y++) {
+            for (int x = 0; x < COLS - 1; x++) {
+                hash <<= 1;
+                if (grid[y * COLS + x] > grid[y * COLS + x + 1]) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /** {@link #FINE_BITS}-bit hash of a fine {@link #grid}, packed into longs. */
+    public static long[] fineHash(int[] grid) {
+        long[] hash = new long[(FINE_BITS + 63) / 64];
+        int bit = 0;
+        for (int y = 0; y < FINE_ROWS; y++) {
+            for (int x = 0; x < FINE_COLS - 1; x++) {
+                if (grid[y * FINE_COLS + x] > grid[y * FINE_COLS + x + 1]) {
+                    hash[bit / 64] |= 1L << (bit % 64);
+                }
+                bit++;
+            }
+        }
+        return hash;
+    }
+
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    public static int distance(long[] a, long[] b) {
+        int distance = 0;
+        for (int i = 0; i < a.length; i++) {
+            distance += Long.bitCount(a[i] ^ b[i]);
+        }
+        return distance;
+    }
+}
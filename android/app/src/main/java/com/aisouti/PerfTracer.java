@@ -0,0 +1,227 @@
+package com.aisouti;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Process-wide latency tracing of the tap → answer path.
+ *
+ * A {@link Trace} timestamps the stages of one capture in
+ * {@link SystemClock#uptimeMillis} and travels with the screenshot through
+ * {@link #attach}/{@link #take}. When it is finished, the time between each
+ * stage and the previous one that was marked is recorded into a
+ * {@link LogHistogram} named after the stage, next to the payload size,
+ * usage tokens and peak heap of the request.
+ *
+ * "submit" is the time the screenshot waited for the user, so "capture"
+ * (first mark → encode) and "answer" (submit → complete) leave it out.
+ * "quick_answer" is marked by the quick answer request that runs alongside
+ * the others, so it is measured from submit instead of the previous stage;
+ * "useful_answer" is submit → whichever of the quick and the complete
+ * answer came first.
+ */
+public final class PerfTracer {
+    private static final String TAG = "PerfTracer";
+
+    public static final String TAP = "tap";
+    public static final String PERMISSION = "permission";
+    public static final String FRAME = "frame";
+    public static final String CONVERT = "convert";
+    public static final String PREPROCESS = "preprocess";
+    public static final String ENCODE = "encode";
+    public static final String SUBMIT = "submit";
+    public static final String UPLOAD_ENCODE = "upload_encode";
+    public static final String REQUEST_SENT = "request_sent";
+    public static final String FIRST_BYTE = "first_byte";
+    public static final String FIRST_TOKEN = "first_token";
+    public static final String COMPLETE = "complete";
+    public static final String QUICK_ANSWER = "quick_answer";
+
+    private static final String[] STAGES = {TAP, PERMISSION, FRAME, CONVERT, PREPROCESS, ENCODE,
+            SUBMIT, UPLOAD_ENCODE, REQUEST_SENT, FIRST_BYTE, FIRST_TOKEN, COMPLETE, QUICK_ANSWER};
+
+    // Screenshots that were never picked up are dropped oldest first
+    private static final int MAX_PENDING = 4;
+
+    // Insertion ordered, so the dashboard lists stages in pipeline order
+    private static final Map<String, LogHistogram> histograms = new LinkedHashMap<>();
+    private static final Map<Long, Trace> pending = new LinkedHashMap<>();
+
+    static {
+        for (String stage : STAGES) {
+            if (!stage.equals(TAP)) {
+                histograms.put(stage, new LogHistogram());
+            }
+        }
+        for (String metric : new String[]{"capture", "answer", "useful_answer", "payload_kb", "prompt_tokens",
+                "completion_tokens", "peak_heap_mb"}) {
+            histograms.put(metric, new LogHistogram());
+        }
+    }
+
+    /** Stage timestamps of one capture and request. */
+    public static final class Trace {
+        private final long[] marks = new long[STAGES.length];
+        private long payloadBytes = -1;
+        private int promptTokens = -1;
+        private int completionTokens = -1;
+        private long peakHeap;
+        private boolean finished;
+
+        private Trace() {}
+
+        /** Marks a stage now; only the first mark of a stage counts. */
+        public void mark(String stage) {
+            markAt(stage, SystemClock.uptimeMillis());
+        }
+
+        /** Marks a stage at a known time; 0 (unknown) is ignored. */
+        public synchronized void markAt(String stage, long uptime) {
+            int index = indexOf(stage);
+            if (uptime > 0 && marks[index] == 0) {
+                marks[index] = uptime;
+            }
+            Runtime runtime = Runtime.getRuntime();
+            peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+        }
+
+        public synchronized void setPayloadBytes(long bytes) {
+            payloadBytes = bytes;
+        }
+
+        public synchronized void setUsage(int prompt, int completion) {
+            promptTokens = prompt;
+            completionTokens = completion;
+        }
+
+        /** Records the trace into the histograms; later calls are ignored. */
+        public void finish() {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+            }
+            record(this);
+        }
+    }
+
+    private PerfTracer() {}
+
+    /** Starts an empty trace; its first mark is where it begins. */
+    public static Trace begin() {
+        return new Trace();
+    }
+
+    /** Keeps a trace for whoever receives the {@link ImageHandoff} handle. */
+    public static synchronized void attach(long handle, Trace trace) {
+        pending.put(handle, trace);
+        while (pending.size() > MAX_PENDING) {
+            pending.remove(pending.keySet().iterator().next());
+        }
+    }
+
+    /** Returns and forgets the trace of a handle, or null. */
+    public static synchronized Trace take(long handle) {
+        return pending.remove(handle);
+    }
+
+    private static int indexOf(String stage) {
+        for (int i = 0; i < STAGES.length; i++) {
+            if (STAGES[i].equals(stage)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown stage " + stage);
+    }
+
+    private static void record(Trace trace) {
+        Map<String, Long> values = new HashMap<>();
+        synchronized (trace) {
+            long[] marks = trace.marks;
+            long previous = 0;
+            long first = 0;
+            for (int i = 0; i < STAGES.length; i++) {
+                if (marks[i] == 0 || STAGES[i].equals(QUICK_ANSWER)) {
+                    continue;
+                }
+                if (previous != 0) {
+                    values.put(STAGES[i], marks[i] - previous);
+                } else {
+                    first = marks[i];
+                }
+                previous = marks[i];
+            }
+            long encode = marks[indexOf(ENCODE)];
+            long submit = marks[indexOf(SUBMIT)];
+            long complete = marks[indexOf(COMPLETE)];
+            if (encode != 0 && first != encode) {
+                values.put("capture", encode - first);
+            }
+            long quick = marks[indexOf(QUICK_ANSWER)];
+            if (submit != 0 && complete != 0) {
+                values.put("answer", complete - submit);
+            }
+            if (submit != 0 && quick != 0) {
+                values.put(QUICK_ANSWER, quick - submit);
+            }
+            if (submit != 0 && (quick != 0 || complete != 0)) {
+                long useful = quick == 0 ? complete : complete == 0 ? quick : Math.min(quick, complete);
+                values.put("useful_answer", useful - submit);
+            }
+            if (trace.payloadBytes >= 0) {
+                values.put("payload_kb", (trace.payloadBytes + 1023) / 1024);
+            }
+            if (trace.promptTokens >= 0) {
+                values.put("prompt_tokens", (long) trace.promptTokens);
+                values.put("completion_tokens", (long) trace.completionTokens);
+            }
+            values.put("peak_heap_mb", trace.peakHeap / (1024 * 1024));
+        }
+        synchronized (PerfTracer.class) {
+            for (Map.Entry<String, Long> value : values.entrySet()) {
+                histograms.get(value.getKey()).record(value.getValue());
+            }
+        }
+        Log.d(TAG, "Trace " + values);
+    }
+
+    /** One line per metric: count, p50, p90, p99 and max. */
+    public static synchronized String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LogHistogram> entry : histograms.entrySet()) {
+            LogHistogram h = entry.getValue();
+            if (h.count() == 0) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(String.format(Locale.US, "%s · n %d · p50 %d · p90 %d · p99 %d · max %d",
+                    entry.getKey(), h.count(), h.percentile(50), h.percentile(90), h.percentile(99), h.max()));
+        }
+        return sb.length() > 0 ? sb.toString() : "暂无数据，截图答题后再来查看";
+    }
+
+    public static synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, LogHistogram> entry : histograms.entrySet()) {
+            json.put(entry.getKey(), entry.getValue().toJson());
+        }
+        return json;
+    }
+
+    public static synchronized void reset() {
+        for (LogHistogram h : histograms.values()) {
+            h.reset();
+        }
+    }
+}
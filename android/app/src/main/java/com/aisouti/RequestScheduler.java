@@ -0,0 +1,141 @@
+package com.aisouti;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Call;
+
+/**
+ * Application-scoped executor for answer requests with bounded concurrency.
+ * Every submitted task gets a {@link Handle}; cancelling it aborts the
+ * sockets of the calls attached to it, interrupts the worker and drops the
+ * task if it has not started, so a closed screen stops costing network and
+ * memory right away.
+ */
+public class RequestScheduler {
+    private static final String TAG = "RequestScheduler";
+    private static final long KEEP_ALIVE_S = 30;
+
+    public interface Task {
+        /** Runs on a worker thread; should return soon after the handle is cancelled. */
+        void run(Handle handle) throws Exception;
+    }
+
+    /** Cancellation handle of one submitted task. */
+    public static final class Handle {
+        private final String name;
+        private final ThreadPoolExecutor executor;
+        private final List<Call> calls = new ArrayList<>();
+        private volatile boolean cancelled;
+        private Future<?> future;
+
+        private Handle(String name, ThreadPoolExecutor executor) {
+            this.name = name;
+            this.executor = executor;
+        }
+
+        /**
+         * Ties a call to this request. A call attached after cancellation
+         * is cancelled immediately.
+         */
+        public void attach(Call call) {
+            synchronized (this) {
+                if (!cancelled) {
+                    calls.add(call);
+                    return;
+                }
+            }
+            call.cancel();
+        }
+
+        public void cancel() {
+            List<Call> toCancel;
+            Future<?> task;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                toCancel = new ArrayList<>(calls);
+                calls.clear();
+                task = future;
+            }
+            for (Call call : toCancel) {
+                call.cancel();
+            }
+            if (task != null) {
+                task.cancel(true);
+                // A queued task still references its closure until purged
+                executor.purge();
+            }
+            Log.d(TAG, "Cancelled " + name);
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        // Drop references so a finished request holds no sockets or buffers
+        private synchronized void finish() {
+            calls.clear();
+            future = null;
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger running = new AtomicInteger();
+
+    public RequestScheduler(int maxConcurrent) {
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent,
+                KEEP_ALIVE_S, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "Request-" + threadCount.incrementAndGet()));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public Handle submit(String name, Task task) {
+        Handle handle = new Handle(name, executor);
+        Future<?> future = executor.submit(() -> {
+            if (handle.isCancelled()) {
+                return;
+            }
+            running.incrementAndGet();
+            try {
+                task.run(handle);
+            } catch (Exception e) {
+                if (!handle.isCancelled()) {
+                    Log.e(TAG, name + " failed", e);
+                }
+            } finally {
+                running.decrementAndGet();
+                handle.finish();
+            }
+        });
+        synchronized (handle) {
+            if (!handle.cancelled) {
+                handle.future = future;
+                return handle;
+            }
+        }
+        future.cancel(true);
+        return handle;
+    }
+
+    /** Number of tasks currently running, for diagnostics. */
+    public int runningCount() {
+        return running.get();
+    }
+
+    /** Number of tasks waiting for a worker, for diagnostics. */
+    public int queuedCount() {
+        executor.purge();
+        return executor.getQueue().size();
+    }
+}
@@ -7,6 +7,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -20,6 +21,7 @@ public class ScreenCaptureActivity extends Activity {
     private MediaProjectionManager projectionManager;
     private int savedResultCode;
     private Intent savedData;
+    private long permissionTime;
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
@@ -54,6 +56,7 @@ public class ScreenCaptureActivity extends Activity {
 
                 savedResultCode = resultCode;
                 savedData = data;
+                permissionTime = SystemClock.uptimeMillis();
 
                 // 显示提示并延迟截图
                 Toast.makeText(this, "3秒后截图，请切换到目标应用...", Toast.LENGTH_SHORT).show();
@@ -80,6 +83,9 @@ public class ScreenCaptureActivity extends Activity {
             serviceIntent.setAction(ScreenCaptureService.ACTION_START);
             serviceIntent.putExtra(ScreenCaptureService.EXTRA_RESULT_CODE, savedResultCode);
             serviceIntent.putExtra(ScreenCaptureService.EXTRA_DATA, savedData);
+            serviceIntent.putExtra(ScreenCaptureService.EXTRA_TAP_TIME,
+                getIntent().getLongExtra(ScreenCaptureService.EXTRA_TAP_TIME, 0));
+            serviceIntent.putExtra(ScreenCaptureService.EXTRA_PERMISSION_TIME, permissionTime);
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                 startForegroundService(serviceIntent);
@@ -1,5 +1,6 @@
 package com.aisouti;
 
+import android.app.ActivityManager;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
@@ -8,8 +9,8 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ServiceInfo;
-import android.graphics.Bitmap;
 import android.graphics.PixelFormat;
+import android.graphics.Rect;
 import android.hardware.display.DisplayManager;
 import android.hardware.display.VirtualDisplay;
 import android.media.Image;
@@ -20,15 +21,15 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
-import android.util.Base64;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.WindowManager;
+import android.widget.Toast;
 
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
-import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 
 public class ScreenCaptureService extends Service {
@@ -37,27 +38,97 @@ public class ScreenCaptureService extends Service {
     private static final int NOTIFICATION_ID = 2;
 
     public static final String ACTION_START = "com.aisouti.START_CAPTURE";
+    public static final String ACTION_CAPTURE = "com.aisouti.CAPTURE_FRAME";
+    public static final String ACTION_STOP = "com.aisouti.STOP_CAPTURE";
+    public static final String ACTION_PREPARE = "com.aisouti.PREPARE_CAPTURE";
+    public static final String ACTION_CANCEL_PREPARE = "com.aisouti.CANCEL_PREPARE_CAPTURE";
+    // SystemClock.uptimeMillis() of the tap that requested the capture
+    public static final String EXTRA_TAP_TIME = "tap_time";
+    // SystemClock.uptimeMillis() when the projection permission was granted
+    public static final String EXTRA_PERMISSION_TIME = "permission_time";
     public static final String EXTRA_RESULT_CODE = "result_code";
     public static final String EXTRA_DATA = "data";
 
+    // Idle session: surfaces are released first, the projection itself later
+    private static final long SURFACE_IDLE_MS = 30_000;
+    private static final long SESSION_IDLE_MS = 5 * 60_000;
+    // Longest wait for a usable frame before falling back to whatever was received
+    private static final long FRAME_DEADLINE_MS = 2000;
+    // Speculative setup from ACTION_PREPARE is undone if no capture follows
+    private static final long PREPARE_TIMEOUT_MS = 2000;
+    // Automatic capture scale: shortest side the compositor renders, by device class
+    private static final int AUTO_SHORT_SIDE = 1080;
+    private static final int AUTO_SHORT_SIDE_LOW_RAM = 720;
+
+    private static volatile boolean sessionActive;
+
+    // Capture session state is confined to the pipeline thread
+    private CapturePipeline pipeline;
+    private Handler handler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable releaseSurfacesTask = this::releaseSurfaces;
+    private final Runnable stopSessionTask = () -> {
+        Log.d(TAG, "Capture session idle, stopping projection");
+        cleanup();
+        stopSelf();
+    };
+
     private MediaProjection mediaProjection;
     private VirtualDisplay virtualDisplay;
     private ImageReader imageReader;
+    private Image latestImage;
+
+    private boolean framePending;
+    private Rect overlayBounds;
+    private final Runnable frameDeadlineTask = this::onFrameDeadline;
+    private final Runnable cancelPrepareTask = this::cancelPrepare;
+    // Surfaces were attached by ACTION_PREPARE and no capture has claimed them yet
+    private boolean speculative;
+    private long tapTime;
+    private long permissionTime;
     private int screenWidth;
     private int screenHeight;
     private int screenDensity;
+    private int statusBarHeight;
+    private int navigationBarHeight;
+    // Size the virtual display renders at, fixed for the lifetime of a session
+    private float captureScale = 1f;
+    private int captureWidth;
+    private int captureHeight;
+
+    private final MediaProjection.Callback projectionCallback = new MediaProjection.Callback() {
+        @Override
+        public void onStop() {
+            Log.d(TAG, "MediaProjection stopped by system");
+            cleanup();
+            stopSelf();
+        }
+    };
+
+    /**
+     * True while a projection is held, so a capture can be requested with
+     * {@link #ACTION_CAPTURE} without asking for permission again.
+     */
+    public static boolean isSessionActive() {
+        return sessionActive;
+    }
 
     @Override
     public void onCreate() {
         super.onCreate();
         createNotificationChannel();
 
+        pipeline = new CapturePipeline();
+        handler = pipeline.getHandler();
+
         WindowManager wm = (WindowManager) getSystemService(Context.WINDOW_SERVICE);
         DisplayMetrics metrics = new DisplayMetrics();
         wm.getDefaultDisplay().getRealMetrics(metrics);
         screenWidth = metrics.widthPixels;
         screenHeight = metrics.heightPixels;
         screenDensity = metrics.densityDpi;
+        statusBarHeight = systemDimension("status_bar_height");
+        navigationBarHeight = systemDimension("navigation_bar_height");
     }
 
     @Override
@@ -76,6 +147,8 @@ public class ScreenCaptureService extends Service {
         if (ACTION_START.equals(action)) {
             int resultCode = intent.getIntExtra(EXTRA_RESULT_CODE, 0);
             Intent data = intent.getParcelableExtra(EXTRA_DATA);
+            long tap = intent.getLongExtra(EXTRA_TAP_TIME, 0);
+            long permission = intent.getLongExtra(EXTRA_PERMISSION_TIME, 0);
 
             Log.d(TAG, "resultCode: " + resultCode + ", data: " + (data != null));
 
@@ -102,11 +175,18 @@ public class ScreenCaptureService extends Service {
                 // Get MediaProjection
                 MediaProjectionManager projectionManager =
                     (MediaProjectionManager) getSystemService(MEDIA_PROJECTION_SERVICE);
-                mediaProjection = projectionManager.getMediaProjection(resultCode, data);
+                MediaProjection projection = projectionManager.getMediaProjection(resultCode, data);
 
-                if (mediaProjection != null) {
+                if (projection != null) {
                     Log.d(TAG, "MediaProjection obtained, starting capture");
-                    captureScreen();
+                    handler.post(() -> {
+                        // A new token replaces any session that is still running
+                        cleanup();
+                        mediaProjection = projection;
+                        tapTime = tap;
+                        permissionTime = permission;
+                        startSession();
+                    });
                 } else {
                     Log.e(TAG, "Failed to get MediaProjection");
                     stopSelf();
@@ -115,11 +195,27 @@ public class ScreenCaptureService extends Service {
                 Log.e(TAG, "Error in onStartCommand", e);
                 stopSelf();
             }
+        } else if (ACTION_CAPTURE.equals(action)) {
+            long tap = intent.getLongExtra(EXTRA_TAP_TIME, 0);
+            handler.post(() -> captureFromSession(tap));
+        } else if (ACTION_PREPARE.equals(action)) {
+            handler.post(this::prepare);
+        } else if (ACTION_CANCEL_PREPARE.equals(action)) {
+            handler.post(this::cancelPrepare);
+        } else if (ACTION_STOP.equals(action)) {
+            handler.post(this::cleanup);
+            stopForeground(true);
+            stopSelf();
         }
 
         return START_NOT_STICKY;
     }
 
+    private int systemDimension(String name) {
+        int id = getResources().getIdentifier(name, "dimen", "android");
+        return id != 0 ? getResources().getDimensionPixelSize(id) : 0;
+    }
+
     private void createNotificationChannel() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationChannel channel = new NotificationChannel(
@@ -150,82 +246,338 @@ public class ScreenCaptureService extends Service {
             .build();
     }
 
-    private void captureScreen() {
+    private void startSession() {
         try {
-            imageReader = ImageReader.newInstance(
-                screenWidth, screenHeight,
-                PixelFormat.RGBA_8888, 2
-            );
+            // Must be registered before creating the virtual display on Android 14+
+            mediaProjection.registerCallback(projectionCallback, handler);
 
+            applyCaptureScale();
+            imageReader = newImageReader();
             virtualDisplay = mediaProjection.createVirtualDisplay(
                 "ScreenCapture",
-                screenWidth, screenHeight, screenDensity,
+                captureWidth, captureHeight, Math.max(1, Math.round(screenDensity * captureScale)),
                 DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
                 imageReader.getSurface(),
                 null, null
             );
+            sessionActive = true;
 
-            // Delay to capture
-            new Handler(Looper.getMainLooper()).postDelayed(this::processImage, 300);
+            requestFrame();
 
         } catch (Exception e) {
-            Log.e(TAG, "captureScreen error", e);
+            Log.e(TAG, "startSession error", e);
             cleanup();
             stopSelf();
         }
     }
 
-    private void processImage() {
-        try {
-            Image image = imageReader.acquireLatestImage();
-            if (image == null) {
-                Log.e(TAG, "acquireLatestImage returned null");
-                cleanup();
+    /**
+     * Lets the compositor scale the mirrored screen down, so every later
+     * stage (GPU readback, row copy, preprocessing, encoding) handles fewer
+     * pixels. Density is scaled along so the aspect ratio and dp size hold.
+     */
+    private void applyCaptureScale() {
+        float scale = getSharedPreferences("settings", MODE_PRIVATE).getFloat("capture_scale", 0f);
+        if (scale <= 0f || scale > 1f) {
+            ActivityManager am = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+            int shortSide = am != null && am.isLowRamDevice() ? AUTO_SHORT_SIDE_LOW_RAM : AUTO_SHORT_SIDE;
+            scale = Math.min(1f, (float) shortSide / Math.min(screenWidth, screenHeight));
+        }
+        captureScale = scale;
+        captureWidth = Math.max(1, Math.round(screenWidth * scale));
+        captureHeight = Math.max(1, Math.round(screenHeight * scale));
+        pipeline.setExcludedBands(Math.round(statusBarHeight * scale),
+            Math.round(navigationBarHeight * scale));
+        Log.d(TAG, "Capturing at " + captureWidth + "x" + captureHeight + " (scale " + scale + ")");
+    }
+
+    // Maps a rectangle in screen pixels to capture pixels
+    private Rect toCaptureRect(Rect screen) {
+        if (screen == null) {
+            return null;
+        }
+        return new Rect(
+            (int) Math.floor(screen.left * captureScale),
+            (int) Math.floor(screen.top * captureScale),
+            (int) Math.ceil(screen.right * captureScale),
+            (int) Math.ceil(screen.bottom * captureScale));
+    }
+
+    private void captureFromSession(long tap) {
+        if (mediaProjection == null || virtualDisplay == null) {
+            // Session was lost (service restarted or projection revoked), ask for permission again
+            Log.d(TAG, "No capture session, falling back to ScreenCaptureActivity");
+            mainHandler.post(() -> {
+                Intent intent = new Intent(this, ScreenCaptureActivity.class);
+                intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                intent.putExtra(EXTRA_TAP_TIME, tap);
+                startActivity(intent);
                 stopSelf();
-                return;
-            }
+            });
+            return;
+        }
 
-            Image.Plane[] planes = image.getPlanes();
-            ByteBuffer buffer = planes[0].getBuffer();
-            int pixelStride = planes[0].getPixelStride();
-            int rowStride = planes[0].getRowStride();
-            int rowPadding = rowStride - pixelStride * screenWidth;
+        handler.removeCallbacks(releaseSurfacesTask);
+        handler.removeCallbacks(stopSessionTask);
+        handler.removeCallbacks(cancelPrepareTask);
+        speculative = false;
+        tapTime = tap;
 
-            Bitmap bitmap = Bitmap.createBitmap(
-                screenWidth + rowPadding / pixelStride,
-                screenHeight,
-                Bitmap.Config.ARGB_8888
-            );
-            bitmap.copyPixelsFromBuffer(buffer);
-            bitmap = Bitmap.createBitmap(bitmap, 0, 0, screenWidth, screenHeight);
+        if (imageReader == null) {
+            // Surfaces were released while idle, reattach and wait for the first frame
+            attachSurface();
+        }
+        requestFrame();
+    }
 
-            image.close();
+    private void attachSurface() {
+        Log.d(TAG, "Reattaching capture surface");
+        imageReader = newImageReader();
+        virtualDisplay.setSurface(imageReader.getSurface());
+    }
 
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 85, outputStream);
-            String base64 = Base64.encodeToString(outputStream.toByteArray(), Base64.NO_WRAP);
+    // Called on touch down: attach surfaces and allocate buffers before the tap completes
+    private void prepare() {
+        if (mediaProjection == null || virtualDisplay == null || framePending) {
+            return;
+        }
+        handler.removeCallbacks(releaseSurfacesTask);
+        if (imageReader == null) {
+            attachSurface();
+            speculative = true;
+        }
+        pipeline.prepareBuffers(captureWidth, captureHeight);
 
-            bitmap.recycle();
-            outputStream.close();
+        handler.removeCallbacks(cancelPrepareTask);
+        handler.postDelayed(cancelPrepareTask, PREPARE_TIMEOUT_MS);
+    }
 
-            cleanup();
+    private void cancelPrepare() {
+        handler.removeCallbacks(cancelPrepareTask);
+        if (framePending || mediaProjection == null) {
+            return;
+        }
+        if (speculative) {
+            speculative = false;
+            releaseSurfaces();
+        } else {
+            scheduleIdleTimeouts();
+        }
+    }
+
+    private void requestFrame() {
+        if (framePending) {
+            return;
+        }
+        framePending = true;
+
+        // Hide the floating button so it does not end up in the screenshot
+        overlayBounds = toCaptureRect(FloatingWindowService.getButtonBounds());
+        if (overlayBounds != null) {
+            setOverlayHidden(true);
+        }
 
+        handler.postDelayed(frameDeadlineTask, FRAME_DEADLINE_MS);
+
+        // A retained frame composed while the answer panel was shown would put the panel in the screenshot
+        if (latestImage != null && OverlayAnswerPanel.mayBeInFrame(latestImage.getTimestamp())) {
+            latestImage.close();
+            latestImage = null;
+        }
+        // The retained frame is already usable when the screen has not changed since
+        if (latestImage != null && isFrameUsable(latestImage)) {
+            onFrameReady();
+        }
+    }
+
+    private ImageReader newImageReader() {
+        ImageReader reader = ImageReader.newInstance(
+            captureWidth, captureHeight,
+            PixelFormat.RGBA_8888, 3
+        );
+        reader.setOnImageAvailableListener(this::onImageAvailable, handler);
+        return reader;
+    }
+
+    // Keep only the newest frame so a warm capture never waits for the compositor
+    private void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireLatestImage();
+        if (image == null) {
+            return;
+        }
+        if (latestImage != null) {
+            latestImage.close();
+        }
+        latestImage = image;
+
+        if (framePending && isFrameUsable(image)) {
+            onFrameReady();
+        }
+    }
+
+    private boolean isFrameUsable(Image image) {
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        if (OverlayAnswerPanel.mayBeInFrame(image.getTimestamp())) {
+            // Queued before the panel was removed
+            Log.d(TAG, "Skipping frame that may still show the answer panel");
+            return false;
+        }
+        if (FrameValidator.isBlank(buffer, rowStride, pixelStride, width, height)) {
+            Log.d(TAG, "Skipping blank frame");
+            return false;
+        }
+        if (overlayBounds != null && showsOverlay(image, overlayBounds)) {
+            Log.d(TAG, "Skipping frame that still shows the floating button");
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean showsOverlay(Image image, Rect bounds) {
+        Image.Plane plane = image.getPlanes()[0];
+        return FrameValidator.showsOverlay(plane.getBuffer(), plane.getRowStride(),
+            plane.getPixelStride(), image.getWidth(), image.getHeight(),
+            bounds.left, bounds.top, bounds.right, bounds.bottom);
+    }
+
+    private void onFrameReady() {
+        framePending = false;
+        handler.removeCallbacks(frameDeadlineTask);
+        setOverlayHidden(false);
+
+        Image image = latestImage;
+        latestImage = null;
+        processImage(image, null);
+    }
+
+    private void onFrameDeadline() {
+        if (!framePending) {
+            return;
+        }
+        framePending = false;
+        Rect bounds = overlayBounds;
+        setOverlayHidden(false);
+
+        Image image = latestImage;
+        latestImage = null;
+        if (image == null) {
+            Log.e(TAG, "No frame received within " + FRAME_DEADLINE_MS + "ms");
+            mainHandler.post(() -> Toast.makeText(this, "截图失败，请重试", Toast.LENGTH_SHORT).show());
+            scheduleIdleTimeouts();
+            return;
+        }
+        // Better a frame that failed validation than no answer at all
+        Log.w(TAG, "No valid frame before deadline, using latest frame");
+        int[] mask = null;
+        if (bounds != null && showsOverlay(image, bounds)) {
+            mask = new int[] {bounds.left, bounds.top, bounds.right, bounds.bottom};
+        }
+        processImage(image, mask);
+    }
+
+    private void setOverlayHidden(boolean hidden) {
+        if (overlayBounds == null) {
+            return;
+        }
+        if (!hidden) {
+            overlayBounds = null;
+        }
+        try {
+            Intent intent = new Intent(this, FloatingWindowService.class);
+            intent.setAction(hidden
+                ? FloatingWindowService.ACTION_HIDE_BUTTON
+                : FloatingWindowService.ACTION_SHOW_BUTTON);
+            startService(intent);
+        } catch (Exception e) {
+            Log.e(TAG, "Error toggling floating button", e);
+        }
+    }
+
+    // mask: floating button rectangle to paint over, when the frame still shows it
+    private void processImage(Image image, int[] mask) {
+        long now = SystemClock.uptimeMillis();
+        if (tapTime != 0) {
+            Log.d(TAG, "Tap to frame: " + (now - tapTime) + "ms");
+        }
+        PerfTracer.Trace trace = PerfTracer.begin();
+        trace.markAt(PerfTracer.TAP, tapTime);
+        trace.markAt(PerfTracer.PERMISSION, permissionTime);
+        trace.markAt(PerfTracer.FRAME, now);
+        tapTime = 0;
+        permissionTime = 0;
+        scheduleIdleTimeouts();
+        pipeline.setEnhanceText(getSharedPreferences("settings", MODE_PRIVATE)
+            .getBoolean("enhance_text", false));
+        pipeline.process(image, mask, trace, captureCallback);
+    }
+
+    private final CapturePipeline.Callback captureCallback = new CapturePipeline.Callback() {
+        @Override
+        public void onEncoded(long handle) {
+            if (FloatingWindowService.isOverlayAnswerEnabled(ScreenCaptureService.this)) {
+                // Answer in the overlay panel, without an activity start or leaving the current app
+                Intent intent = new Intent(ScreenCaptureService.this, FloatingWindowService.class);
+                intent.setAction(FloatingWindowService.ACTION_SHOW_ANSWER);
+                intent.putExtra(ImageHandoff.EXTRA_HANDLE, handle);
+                startService(intent);
+                return;
+            }
             // Start CropAndAnswerActivity
-            Intent intent = new Intent(this, CropAndAnswerActivity.class);
-            intent.putExtra("image_base64", base64);
+            Intent intent = new Intent(ScreenCaptureService.this, CropAndAnswerActivity.class);
+            intent.putExtra(ImageHandoff.EXTRA_HANDLE, handle);
             intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
             startActivity(intent);
+        }
 
-            stopSelf();
-
-        } catch (Exception e) {
+        @Override
+        public void onError(Exception e) {
             Log.e(TAG, "processImage error", e);
-            cleanup();
+            handler.post(ScreenCaptureService.this::cleanup);
             stopSelf();
         }
+    };
+
+    private void scheduleIdleTimeouts() {
+        handler.removeCallbacks(releaseSurfacesTask);
+        handler.removeCallbacks(stopSessionTask);
+        handler.postDelayed(releaseSurfacesTask, SURFACE_IDLE_MS);
+        handler.postDelayed(stopSessionTask, SESSION_IDLE_MS);
+    }
+
+    // Stops composition into our surface but keeps the projection for the next capture
+    private void releaseSurfaces() {
+        Log.d(TAG, "Releasing idle capture surfaces");
+        if (virtualDisplay != null) {
+            virtualDisplay.setSurface(null);
+        }
+        if (latestImage != null) {
+            latestImage.close();
+            latestImage = null;
+        }
+        if (imageReader != null) {
+            imageReader.close();
+            imageReader = null;
+        }
+        pipeline.releaseBuffers();
     }
 
     private void cleanup() {
+        sessionActive = false;
+        handler.removeCallbacksAndMessages(null);
+        if (framePending) {
+            framePending = false;
+            setOverlayHidden(false);
+        }
+        if (latestImage != null) {
+            latestImage.close();
+            latestImage = null;
+        }
         if (virtualDisplay != null) {
             virtualDisplay.release();
             virtualDisplay = null;
@@ -235,9 +587,12 @@ public class ScreenCaptureService extends Service {
             imageReader = null;
         }
         if (mediaProjection != null) {
-            mediaProjection.stop();
+            MediaProjection projection = mediaProjection;
             mediaProjection = null;
+            projection.unregisterCallback(projectionCallback);
+            projection.stop();
         }
+        pipeline.releaseBuffers();
     }
 
     @Nullable
@@ -249,6 +604,7 @@ public class ScreenCaptureService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        cleanup();
+        handler.post(this::cleanup);
+        pipeline.quit();
     }
 }
@@ -0,0 +1,81 @@
+package com.aisouti;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental parser for text/event-stream response bodies.
+ * Events are returned as soon as their terminating blank line arrives.
+ */
+public class SseParser implements Closeable {
+    public static final String DONE = "[DONE]";
+
+    private final BufferedReader reader;
+    private final StringBuilder data = new StringBuilder();
+
+    public SseParser(InputStream in) {
+        reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Blocks until the next event is complete and returns its data payload,
+     * or null once the stream has ended.
+     */
+    public String nextEvent() throws IOException {
+        data.setLength(0);
+        boolean hasData = false;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                if (hasData) {
+                    return data.toString();
+                }
+                continue;
+            }
+            // Comment lines are used as keep-alives by some proxies
+            if (line.charAt(0) == ':') {
+                continue;
+            }
+            if (line.startsWith("data:")) {
+                int start = line.length() > 5 && line.charAt(5) == ' ' ? 6 : 5;
+                if (hasData) {
+                    data.append('\n');
+                }
+                data.append(line, start, line.length());
+                hasData = true;
+            }
+            // event:, id: and retry: are not used by chat completion streams
+        }
+        return hasData ? data.toString() : null;
+    }
+
+    /**
+     * Extracts choices[0].delta.content from a chat completion chunk.
+     * Returns an empty string for chunks without content (role, finish_reason).
+     */
+    public static String extractDelta(String data) throws JSONException {
+        JSONObject chunk = new JSONObject(data);
+        JSONArray choices = chunk.optJSONArray("choices");
+        if (choices == null || choices.length() == 0) {
+            return "";
+        }
+        JSONObject delta = choices.getJSONObject(0).optJSONObject("delta");
+        if (delta == null || delta.isNull("content")) {
+            return "";
+        }
+        return delta.optString("content", "");
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
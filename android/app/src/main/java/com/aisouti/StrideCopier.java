@@ -0,0 +1,36 @@
+package com.aisouti;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copies image rows out of a padded plane buffer into a tightly packed one.
+ * Pure Java so it can be benchmarked on a plain JVM.
+ */
+public final class StrideCopier {
+
+    private StrideCopier() {}
+
+    /**
+     * Copies {@code height} rows of {@code rowBytes} each from {@code src},
+     * whose rows start every {@code rowStride} bytes, into {@code dst}.
+     * {@code dst} is cleared first and flipped afterwards, ready to be read.
+     */
+    public static void copyRows(ByteBuffer src, int rowStride, int rowBytes, int height,
+                                ByteBuffer dst) {
+        if (dst.capacity() < rowBytes * height) {
+            throw new IllegalArgumentException("Destination too small: " + dst.capacity()
+                + " < " + rowBytes * height);
+        }
+        // One view of the source per frame, rows are sliced by moving its window
+        ByteBuffer row = src.duplicate();
+        row.clear();
+        dst.clear();
+        for (int y = 0; y < height; y++) {
+            int start = y * rowStride;
+            row.limit(start + rowBytes);
+            row.position(start);
+            dst.put(row);
+        }
+        dst.flip();
+    }
+}
@@ -0,0 +1,34 @@
+package com.aisouti;
+
+/**
+ * Estimates how many prompt tokens an image costs a vision model, following
+ * the published OpenAI tiling rules: "low" is a flat 85 tokens, "high"
+ * fits the image in 2048x2048, scales the shortest side down to 768 and
+ * charges 170 tokens per 512px tile plus 85.
+ */
+public final class VisionTokenEstimator {
+    private static final int BASE_TOKENS = 85;
+    private static final int TILE_TOKENS = 170;
+    private static final int TILE_SIZE = 512;
+
+    private VisionTokenEstimator() {}
+
+    public static int estimate(int width, int height, String detail) {
+        if ("low".equals(detail) || width <= 0 || height <= 0) {
+            return BASE_TOKENS;
+        }
+        double w = width;
+        double h = height;
+        double fit = Math.min(1.0, 2048.0 / Math.max(w, h));
+        w *= fit;
+        h *= fit;
+        double shortest = Math.min(w, h);
+        if (shortest > 768) {
+            double scale = 768.0 / shortest;
+            w *= scale;
+            h *= scale;
+        }
+        int tiles = (int) Math.ceil(w / TILE_SIZE) * (int) Math.ceil(h / TILE_SIZE);
+        return BASE_TOKENS + TILE_TOKENS * tiles;
+    }
+}
@@ -0,0 +1,78 @@
+package com.aisouti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class AdaptiveEncoderTest {
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 2400;
+
+    @Test
+    public void fewLinesOfSmallTextNeedHighDetail() {
+        // A short question in 40px lines on an otherwise plain screen
+        Bitmap screen = screen(new int[] {600, 660, 720}, 40);
+        AdaptiveEncoder encoder = new AdaptiveEncoder();
+
+        assertEquals(40, encoder.lineHeight(screen), 2);
+        assertEquals("high", encoder.encode(screen).detail);
+    }
+
+    @Test
+    public void largeTextIsReadableAtLowDetail() {
+        Bitmap screen = screen(new int[] {400, 900, 1400}, 120);
+        AdaptiveEncoder encoder = new AdaptiveEncoder();
+
+        assertEquals("low", encoder.encode(screen).detail);
+    }
+
+    @Test
+    public void unmeasuredTextNeedsHighDetail() {
+        // Light grey strokes are below the edge threshold, so no line is found
+        Bitmap screen = screen(new int[] {600, 660, 720}, 40, Color.rgb(215, 215, 215));
+        AdaptiveEncoder encoder = new AdaptiveEncoder();
+
+        assertEquals(0, encoder.lineHeight(screen));
+        assertEquals("high", encoder.encode(screen).detail);
+    }
+
+    @Test
+    public void tokenBudgetForcesLowDetail() {
+        Bitmap screen = screen(new int[] {600, 660, 720}, 40);
+        AdaptiveEncoder encoder = new AdaptiveEncoder();
+        encoder.setTokenBudget(100);
+
+        AdaptiveEncoder.Result result = encoder.encode(screen);
+
+        assertEquals("low", result.detail);
+        assertTrue(result.tokens <= 100);
+    }
+
+    private static Bitmap screen(int[] lineTops, int lineHeight) {
+        return screen(lineTops, lineHeight, Color.BLACK);
+    }
+
+    // White screen with lines of glyph-like vertical strokes starting at the given rows
+    private static Bitmap screen(int[] lineTops, int lineHeight, int ink) {
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.WHITE);
+        int[] row = new int[WIDTH];
+        for (int x = 0; x < WIDTH; x++) {
+            boolean stroke = x >= 60 && x < WIDTH - 60 && (x / 6) % 3 == 0;
+            row[x] = stroke ? ink : Color.WHITE;
+        }
+        for (int top : lineTops) {
+            for (int y = top; y < top + lineHeight; y++) {
+                bitmap.setPixels(row, 0, WIDTH, 0, y, WIDTH, 1);
+            }
+        }
+        return bitmap;
+    }
+}
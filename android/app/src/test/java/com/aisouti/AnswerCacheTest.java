@@ -0,0 +1,177 @@
+package com.aisouti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(RobolectricTestRunner.class)
+public class AnswerCacheTest {
+    private static final long HASH = 0x0123456789abcdefL;
+    private static final long[] DETAIL = new long[(PerceptualHash.FINE_BITS + 63) / 64];
+    private static final String KEY = AnswerCache.promptKey("gpt-4o", "system", "user", "high");
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 2400;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private AnswerCache cache;
+    private RequestScheduler scheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = folder.newFolder("answers");
+        cache = new AnswerCache(dir);
+        scheduler = new RequestScheduler(1);
+    }
+
+    @Test
+    public void matchesOnlyNearIdenticalHashesOfTheSameSize() {
+        cache.put(image(HASH, 1080, 2400), KEY, "A");
+
+        assertEquals("A", cache.get(image(HASH ^ 0b11, 1080, 2400), KEY));
+        assertEquals("A", cache.get(image(HASH, 1075, 2400), KEY));
+        assertNull(cache.get(image(HASH ^ 0b111, 1080, 2400), KEY));
+        assertNull(cache.get(image(HASH, 1080, 1800), KEY));
+        assertNull(cache.get(image(HASH, 1080, 2400), AnswerCache.promptKey("other")));
+    }
+
+    @Test
+    public void returnsTheClosestEntryFromMemoryAndDisk() {
+        cache.put(image(HASH ^ 0b11, 1080, 2400), KEY, "two bits off");
+        cache.put(image(HASH ^ 0b1, 1080, 2400), KEY, "one bit off");
+
+        assertEquals("one bit off", cache.get(image(HASH, 1080, 2400), KEY));
+        // A fresh instance only has the disk index
+        assertEquals("one bit off", new AnswerCache(dir).get(image(HASH, 1080, 2400), KEY));
+    }
+
+    @Test
+    public void followersShareTheRunningRequest() {
+        RequestScheduler.Handle owner = scheduler.submit("owner", handle -> {});
+        AnswerCache.InFlight flight = cache.joinOrBegin(owner, image(HASH, 1080, 2400), KEY, null);
+        assertNotNull(flight);
+        flight.append("x = ");
+        RecordingListener follower = new RecordingListener();
+
+        assertNull(cache.joinOrBegin(owner, image(HASH ^ 1, 1080, 2400), KEY, follower));
+        flight.append("4");
+        flight.complete("x = 4");
+
+        assertEquals("x = 4", String.join("", follower.deltas));
+        assertEquals("x = 4", follower.answer);
+        assertEquals("x = 4", cache.get(image(HASH, 1080, 2400), KEY));
+    }
+
+    @Test
+    public void requestOfCancelledOwnerIsNotJoined() {
+        RequestScheduler.Handle cancelled = scheduler.submit("cancelled", handle -> {});
+        AnswerCache.InFlight stale = cache.joinOrBegin(cancelled, image(HASH, 1080, 2400), KEY, null);
+        RecordingListener earlyFollower = new RecordingListener();
+        assertNull(cache.joinOrBegin(cancelled, image(HASH, 1080, 2400), KEY, earlyFollower));
+        cancelled.cancel();
+
+        // A re-crop of the same question starts its own request
+        RequestScheduler.Handle next = scheduler.submit("next", handle -> {});
+        RecordingListener follower = new RecordingListener();
+        AnswerCache.InFlight flight = cache.joinOrBegin(next, image(HASH, 1080, 2400), KEY, follower);
+        assertNotNull(flight);
+        assertTrue(flight != stale);
+
+        // The cancelled request still releases whoever followed it before
+        stale.fail();
+        assertTrue(earlyFollower.failed);
+        assertTrue(follower.deltas.isEmpty());
+        assertNull(follower.answer);
+    }
+
+    @Test
+    public void otherQuestionsOnTheSameTemplateMiss() {
+        AnswerCache.ImageKey first = AnswerCache.ImageKey.of(question(1));
+        AnswerCache.ImageKey second = AnswerCache.ImageKey.of(question(2));
+        // The coarse hash alone would take one for the other
+        assertTrue(first.layoutDistance(second) <= AnswerCache.MAX_DISTANCE);
+
+        cache.put(first, KEY, "A");
+
+        assertEquals("A", cache.get(AnswerCache.ImageKey.of(question(1)), KEY));
+        assertEquals("A", new AnswerCache(dir).get(first, KEY));
+        assertNull(cache.get(second, KEY));
+        assertNull(new AnswerCache(dir).get(second, KEY));
+
+        RequestScheduler.Handle owner = scheduler.submit("owner", handle -> {});
+        assertNotNull(cache.joinOrBegin(owner, first, KEY, null));
+        assertNotNull(cache.joinOrBegin(owner, second, KEY, new RecordingListener()));
+    }
+
+    private static AnswerCache.ImageKey image(long hash, int width, int height) {
+        return new AnswerCache.ImageKey(hash, DETAIL, width, height);
+    }
+
+    // Three lines of glyph-like blocks at fixed positions. Every four blocks hold
+    // the same ink in an order picked by the seed, like another question on the
+    // same quiz template.
+    private static Bitmap question(long seed) {
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.WHITE);
+        Random random = new Random(seed);
+        int[] row = new int[WIDTH];
+        for (int top : new int[] {600, 660, 720}) {
+            Arrays.fill(row, Color.WHITE);
+            for (int group = 120; group < 960; group += 120) {
+                List<Integer> strokes = Arrays.asList(1, 2, 3, 4);
+                Collections.shuffle(strokes, random);
+                for (int i = 0; i < 4; i++) {
+                    for (int k = 0; k < strokes.get(i); k++) {
+                        int left = group + i * 30 + 3 + k * 6;
+                        Arrays.fill(row, left, left + 3, Color.BLACK);
+                    }
+                }
+            }
+            for (int y = top; y < top + 40; y++) {
+                bitmap.setPixels(row, 0, WIDTH, 0, y, WIDTH, 1);
+            }
+        }
+        return bitmap;
+    }
+
+    private static final class RecordingListener implements AnswerCache.Listener {
+        final List<String> deltas = new ArrayList<>();
+        String answer;
+        boolean failed;
+
+        @Override
+        public void onDelta(String delta) {
+            deltas.add(delta);
+        }
+
+        @Override
+        public void onComplete(String answer) {
+            this.answer = answer;
+        }
+
+        @Override
+        public void onFailed() {
+            failed = true;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.aisouti;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+/**
+ * Hedging only makes sense where a first token can arrive early: plain
+ * (non-streaming) endpoints and quick answers must not trigger or skew it.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class AnswerClientTest {
+    private static final long THRESHOLD_MS = 200;
+    private static final long SLOW_MS = 1000;
+    private static final long TIMEOUT_S = 5;
+    private static final String ANSWER = "{\"choices\":[{\"message\":{\"content\":\"4\"}}]}";
+    private static final String STREAM = "data: {\"choices\":[{\"delta\":{\"content\":\"4\"}}]}\n\ndata: [DONE]\n\n";
+
+    private MockWebServer server;
+    private AnswerClient.HedgeStats stats;
+    private AnswerClient client;
+    private RequestScheduler scheduler;
+    private List<AnswerClient.Target> targets;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        stats = new AnswerClient.HedgeStats(THRESHOLD_MS);
+        client = new AnswerClient(new ApiClient(), stats);
+        scheduler = new RequestScheduler(1);
+        String baseUrl = ApiClient.normalizeBaseUrl(server.url("/v1/").toString());
+        targets = Collections.singletonList(new AnswerClient.Target(baseUrl, "key", "gpt-4o"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void slowStreamingEndpointIsHedged() throws Exception {
+        server.enqueue(stream().setHeadersDelay(SLOW_MS, TimeUnit.MILLISECONDS));
+        server.enqueue(stream());
+
+        assertEquals("4", complete(""));
+
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void nonStreamingEndpointIsNeverHedged() throws Exception {
+        // The endpoint rejects the stream flag once and is remembered as non-streaming
+        server.enqueue(new MockResponse().setResponseCode(400));
+        server.enqueue(new MockResponse().setBody(ANSWER));
+        assertEquals("4", complete(null));
+        assertEquals(2, server.getRequestCount());
+
+        // Its whole answer arrives after the threshold, which is no reason to send a duplicate
+        server.enqueue(new MockResponse().setBody(ANSWER).setHeadersDelay(SLOW_MS, TimeUnit.MILLISECONDS));
+        server.enqueue(new MockResponse().setBody(ANSWER));
+        assertEquals("4", complete(""));
+
+        assertEquals(3, server.getRequestCount());
+        assertEquals(THRESHOLD_MS, stats.thresholdMs());
+    }
+
+    @Test
+    public void quickAnswersAreLeftOutOfTheStatistics() throws Exception {
+        server.enqueue(stream());
+
+        String answer = client.completeQuick(scheduler.submit("Quick", handle -> {}), targets,
+                AnswerClientTest::writer, delta -> {});
+
+        assertEquals("4", answer);
+        assertEquals(0, stats.requestCount());
+    }
+
+    // Runs an answer on a worker; once it was sent, moves the (paused) clock past the hedging threshold
+    private String complete(String hedgeModel) throws Exception {
+        int sent = server.getRequestCount();
+        CompletableFuture<String> answer = new CompletableFuture<>();
+        scheduler.submit("Answer", handle -> {
+            try {
+                answer.complete(client.complete(handle, targets, hedgeModel, AnswerClientTest::writer, delta -> {}));
+            } catch (IOException e) {
+                answer.completeExceptionally(e);
+            }
+        });
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_S);
+        while (server.getRequestCount() == sent && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        ShadowSystemClock.advanceBy(Duration.ofMillis(THRESHOLD_MS * 2));
+        return answer.get(TIMEOUT_S, TimeUnit.SECONDS);
+    }
+
+    private static MockResponse stream() {
+        return new MockResponse().setHeader("Content-Type", "text/event-stream").setBody(STREAM);
+    }
+
+    private static ChatRequestWriter writer(String model, boolean stream) {
+        ChatRequestWriter writer = new ChatRequestWriter(model, "system", "question",
+                new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9}, "image/jpeg");
+        writer.setStream(stream);
+        return writer;
+    }
+}
@@ -0,0 +1,80 @@
+package com.aisouti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Typeface;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class AnswerMarkdownTest {
+    private static final String ANSWER = "## 解题思路\n\n"
+            + "设所求为 $x$，由题意可得：\n\n"
+            + "$$\n2x + 3 = 11\n$$\n\n"
+            + "```\nx = (11 - 3) / 2\n\nprint(x)\n```\n\n"
+            + "- 移项得 $2x = 8$\n- 两边同除以 2\n\n"
+            + "---\n"
+            + "**最终答案**：$x = 4$";
+
+    @Test
+    public void splitsAtBlankLinesAndKeepsFencesTogether() {
+        assertEquals(Arrays.asList(
+                "## 解题思路",
+                "设所求为 $x$，由题意可得：",
+                "$$\n2x + 3 = 11\n$$",
+                "```\nx = (11 - 3) / 2\n\nprint(x)\n```",
+                "- 移项得 $2x = 8$\n- 两边同除以 2",
+                "---",
+                "**最终答案**：$x = 4$"), AnswerMarkdown.splitBlocks(ANSWER));
+    }
+
+    @Test
+    public void streamingOnlyChangesTheLastBlock() {
+        // What lets the renderer keep every paragraph but the tail while tokens arrive
+        List<String> full = AnswerMarkdown.splitBlocks(ANSWER);
+        for (int end = 1; end <= ANSWER.length(); end++) {
+            List<String> partial = AnswerMarkdown.splitBlocks(ANSWER.substring(0, end));
+            for (int i = 0; i < partial.size() - 1; i++) {
+                assertEquals("prefix of " + end + " chars, block " + i, full.get(i), partial.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void rendersEmphasisAndKeepsUnclosedMarkersLiteral() {
+        CharSequence bold = AnswerMarkdown.render("**答案** 是 4");
+        assertEquals("答案 是 4", bold.toString());
+        StyleSpan[] spans = ((Spanned) bold).getSpans(0, bold.length(), StyleSpan.class);
+        assertEquals(1, spans.length);
+        assertEquals(Typeface.BOLD, spans[0].getStyle());
+
+        // Cut off mid-stream, and arithmetic that is not emphasis
+        assertEquals("**答案", AnswerMarkdown.render("**答案").toString());
+        assertEquals("2*3*4 = 24", AnswerMarkdown.render("2*3*4 = 24").toString());
+    }
+
+    @Test
+    public void rewritesTexToUnicode() {
+        assertEquals("x²", AnswerMarkdown.latex("x^2"));
+        assertEquals("a₁", AnswerMarkdown.latex("a_1"));
+        assertEquals("(a+b)/2", AnswerMarkdown.latex("\\frac{a+b}{2}"));
+        assertEquals("√2", AnswerMarkdown.latex("\\sqrt{2}"));
+        assertEquals("α ≤ π", AnswerMarkdown.latex("\\alpha \\le \\pi"));
+        assertEquals("设 x = 4", AnswerMarkdown.render("设 $x = 4$").toString());
+    }
+
+    @Test
+    public void listsGetBulletsAndRulesALine() {
+        assertEquals("• 移项\n    • 两边同除以 2",
+                AnswerMarkdown.render("- 移项\n  - 两边同除以 2").toString());
+        assertTrue(AnswerMarkdown.render("---").toString().startsWith("──"));
+    }
+}
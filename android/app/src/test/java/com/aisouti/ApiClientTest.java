@@ -0,0 +1,103 @@
+package com.aisouti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * One shared {@link ApiClient} must keep its connection alive between
+ * questions and after pre-warming, so only the first request pays for
+ * the handshake.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ApiClientTest {
+    private static final String ANSWER = "{\"choices\":[{\"message\":{\"content\":\"4\"}}]}";
+
+    private MockWebServer server;
+    private ApiClient client;
+    private String baseUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        client = new ApiClient();
+        baseUrl = ApiClient.normalizeBaseUrl(server.url("/v1/").toString());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void sequentialRequestsShareOneConnection() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            server.enqueue(new MockResponse().setBody(ANSWER));
+        }
+
+        for (int i = 0; i < 3; i++) {
+            try (Response response = client.newChatCall(baseUrl, "key", writer()).execute()) {
+                assertEquals(200, response.code());
+                response.body().string();
+            }
+        }
+
+        for (int i = 0; i < 3; i++) {
+            RecordedRequest request = server.takeRequest(1, TimeUnit.SECONDS);
+            assertEquals("/v1/chat/completions", request.getPath());
+            // Index of the request on its connection: all three went over the first one
+            assertEquals(i, request.getSequenceNumber());
+        }
+        assertEquals(1, client.getConnectionPool().connectionCount());
+    }
+
+    @Test
+    public void requestAfterPrewarmReusesTheWarmConnection() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(401));
+        server.enqueue(new MockResponse().setBody(ANSWER));
+
+        client.prewarm(baseUrl);
+        RecordedRequest prewarm = server.takeRequest(1, TimeUnit.SECONDS);
+        assertEquals("HEAD", prewarm.getMethod());
+        assertEquals("/v1/models", prewarm.getPath());
+        awaitIdleConnection();
+
+        try (Response response = client.newChatCall(baseUrl, "key", writer()).execute()) {
+            response.body().string();
+        }
+
+        RecordedRequest chat = server.takeRequest(1, TimeUnit.SECONDS);
+        assertEquals("POST", chat.getMethod());
+        assertEquals(1, chat.getSequenceNumber());
+        assertEquals(1, client.getConnectionPool().connectionCount());
+    }
+
+    private static ChatRequestWriter writer() {
+        ChatRequestWriter writer = new ChatRequestWriter("gpt-4o", "system", "question",
+                new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9}, "image/jpeg");
+        writer.setStream(false);
+        return writer;
+    }
+
+    // The pre-warm call returns its connection to the pool asynchronously
+    private void awaitIdleConnection() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (client.getConnectionPool().idleConnectionCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue("pre-warm connection never became idle", client.getConnectionPool().idleConnectionCount() > 0);
+    }
+}
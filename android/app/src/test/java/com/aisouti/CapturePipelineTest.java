@@ -0,0 +1,121 @@
+package com.aisouti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The capture stages must run on the pipeline thread; the main looper only
+ * receives the hand-off, so the overlay stays responsive while a full
+ * resolution screenshot is encoded.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CapturePipelineTest {
+    private static final long TIMEOUT_MS = 10_000;
+
+    private CapturePipeline pipeline;
+    private Bitmap frame;
+
+    @Before
+    public void setUp() {
+        pipeline = new CapturePipeline();
+        frame = Bitmap.createBitmap(1080, 2400, Bitmap.Config.ARGB_8888);
+        frame.eraseColor(Color.WHITE);
+    }
+
+    @After
+    public void tearDown() {
+        pipeline.quit();
+        frame.recycle();
+    }
+
+    @Test
+    public void stagesRunOffTheMainThread() throws Exception {
+        AtomicReference<Thread> stageThread = new AtomicReference<>();
+        AtomicLong handle = new AtomicLong();
+        pipeline.getHandler().post(() -> {
+            stageThread.set(Thread.currentThread());
+            pipeline.processFrame(frame, null, PerfTracer.begin(), callback(handle));
+        });
+
+        // The main looper is not run while the stages work, so none of them can need it
+        awaitPipeline();
+
+        assertNotNull(stageThread.get());
+        assertNotEquals(Looper.getMainLooper().getThread(), stageThread.get());
+        assertEquals(0, handle.get());
+        assertEquals(1, runMainLooperTasks());
+        assertNotEquals(0, handle.get());
+        assertNotNull(ImageHandoff.get(handle.get()));
+        ImageHandoff.release(handle.get());
+    }
+
+    @Test
+    public void eachCapturePostsOnlyItsHandOffToTheMainLooper() throws Exception {
+        AtomicLong[] handles = new AtomicLong[5];
+        for (int i = 0; i < handles.length; i++) {
+            AtomicLong handle = new AtomicLong();
+            handles[i] = handle;
+            pipeline.getHandler().post(() ->
+                    pipeline.processFrame(frame, new int[] {40, 200, 184, 344}, PerfTracer.begin(), callback(handle)));
+        }
+        awaitPipeline();
+
+        assertEquals(handles.length, runMainLooperTasks());
+        for (AtomicLong handle : handles) {
+            assertNotEquals(0, handle.get());
+            ImageHandoff.release(handle.get());
+        }
+    }
+
+    private static CapturePipeline.Callback callback(AtomicLong handle) {
+        return new CapturePipeline.Callback() {
+            @Override
+            public void onEncoded(long h) {
+                assertEquals(Looper.getMainLooper(), Looper.myLooper());
+                handle.set(h);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                throw new AssertionError(e);
+            }
+        };
+    }
+
+    // Waits until everything posted to the pipeline thread so far has run
+    private void awaitPipeline() throws InterruptedException {
+        CountDownLatch drained = new CountDownLatch(1);
+        pipeline.getHandler().post(drained::countDown);
+        assertTrue("pipeline did not finish", drained.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    // Runs what is queued on the main looper one message at a time and returns how many there were
+    private static int runMainLooperTasks() {
+        ShadowLooper mainLooper = shadowOf(Looper.getMainLooper());
+        int tasks = 0;
+        while (!mainLooper.isIdle()) {
+            mainLooper.runOneTask();
+            tasks++;
+        }
+        return tasks;
+    }
+}
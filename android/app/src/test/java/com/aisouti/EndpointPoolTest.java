@@ -0,0 +1,81 @@
+package com.aisouti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.List;
+
+import okhttp3.Headers;
+
+@RunWith(RobolectricTestRunner.class)
+public class EndpointPoolTest {
+    private final AnswerClient.Target fast = new AnswerClient.Target("https://fast.example/v1/", "key", "gpt-4o");
+    private final AnswerClient.Target slow = new AnswerClient.Target("https://slow.example/v1/", "key", "gpt-4o");
+    private final List<AnswerClient.Target> targets = Arrays.asList(slow, fast);
+
+    @Test
+    public void ranksByLatency() {
+        EndpointPool pool = new EndpointPool();
+        pool.recordSuccess(fast, 500);
+
+        assertSame(fast, pool.rank(targets).get(0));
+    }
+
+    @Test
+    public void exhaustedBudgetOutlastsTheSuccessOfTheSameResponse() {
+        EndpointPool pool = new EndpointPool();
+        // The order AnswerClient reports one response in: headers first, then the first token
+        pool.observeRateLimit(fast, Headers.of(
+                "x-ratelimit-remaining-requests", "0",
+                "x-ratelimit-reset-requests", "20s"));
+        pool.recordSuccess(fast, 500);
+
+        assertEquals(Arrays.asList(slow, fast), pool.rank(targets));
+    }
+
+    @Test
+    public void retryAfterOutlastsALaterSuccess() {
+        EndpointPool pool = new EndpointPool();
+        pool.recordFailure(fast, 429, Headers.of("Retry-After", "30"));
+        pool.recordSuccess(fast, 500);
+
+        assertEquals(Arrays.asList(slow, fast), pool.rank(targets));
+    }
+
+    @Test
+    public void successClosesTheCircuit() {
+        EndpointPool pool = new EndpointPool();
+        pool.recordSuccess(slow, 10_000);
+        pool.recordSuccess(fast, 500);
+        for (int i = 0; i < 3; i++) {
+            pool.recordFailure(fast, 0, null);
+        }
+        assertEquals(Arrays.asList(slow, fast), pool.rank(targets));
+
+        pool.recordSuccess(fast, 500);
+
+        assertSame(fast, pool.rank(targets).get(0));
+    }
+
+    @Test
+    public void requestErrorsDoNotOpenTheCircuit() {
+        EndpointPool pool = new EndpointPool();
+        pool.recordSuccess(slow, 10_000);
+        pool.recordSuccess(fast, 500);
+        for (int code : new int[] {400, 401, 404, 413, 400}) {
+            pool.recordFailure(fast, code, Headers.of());
+        }
+
+        assertSame(fast, pool.rank(targets).get(0));
+
+        for (int code : new int[] {500, 408, 429}) {
+            pool.recordFailure(fast, code, Headers.of());
+        }
+        assertEquals(Arrays.asList(slow, fast), pool.rank(targets));
+    }
+}
@@ -0,0 +1,59 @@
+package com.aisouti;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class FrameValidatorTest {
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 2400;
+    // Padded rows, as ImageReader planes often have
+    private static final int ROW_STRIDE = WIDTH * 4 + 64;
+
+    @Test
+    public void uncomposedFrameIsBlank() {
+        ByteBuffer frame = frame(0);
+        assertTrue(FrameValidator.isBlank(frame, ROW_STRIDE, 4, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void darkModeScreenWithTextIsNotBlank() {
+        ByteBuffer frame = frame(0);
+        // Dim gray text lines on true black, every sample stays below the brightness threshold
+        for (int y = 300; y < HEIGHT - 300; y += 90) {
+            for (int row = y; row < y + 30; row++) {
+                for (int x = 60; x < WIDTH - 60; x++) {
+                    setPixel(frame, x, row, 12);
+                }
+            }
+        }
+        assertFalse(FrameValidator.isBlank(frame, ROW_STRIDE, 4, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void brightFrameIsNotBlank() {
+        ByteBuffer frame = frame(0xF5);
+        assertFalse(FrameValidator.isBlank(frame, ROW_STRIDE, 4, WIDTH, HEIGHT));
+    }
+
+    private static ByteBuffer frame(int gray) {
+        ByteBuffer frame = ByteBuffer.allocate(ROW_STRIDE * HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                setPixel(frame, x, y, gray);
+            }
+        }
+        return frame;
+    }
+
+    private static void setPixel(ByteBuffer frame, int x, int y, int gray) {
+        int offset = y * ROW_STRIDE + x * 4;
+        frame.put(offset, (byte) gray);
+        frame.put(offset + 1, (byte) gray);
+        frame.put(offset + 2, (byte) gray);
+        frame.put(offset + 3, (byte) 0xFF);
+    }
+}
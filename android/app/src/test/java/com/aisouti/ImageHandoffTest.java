@@ -0,0 +1,68 @@
+package com.aisouti;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class ImageHandoffTest {
+    private static final byte[] JPEG = {1, 2, 3};
+
+    @Test
+    public void unclaimedEntriesAreEvictedOldestFirst() {
+        long oldest = ImageHandoff.put(JPEG, "image/jpeg");
+        List<Long> newer = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            newer.add(ImageHandoff.put(JPEG, "image/jpeg"));
+        }
+
+        assertNull(ImageHandoff.get(oldest));
+        for (long handle : newer) {
+            assertNotNull(ImageHandoff.get(handle));
+            ImageHandoff.release(handle);
+        }
+    }
+
+    @Test
+    public void claimedEntrySurvivesEviction() {
+        long shown = ImageHandoff.put(JPEG, "image/jpeg");
+        ImageHandoff.Entry entry = ImageHandoff.claim(shown);
+        List<Long> newer = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            newer.add(ImageHandoff.put(JPEG, "image/jpeg"));
+        }
+
+        assertSame(entry, ImageHandoff.get(shown));
+        ImageHandoff.release(shown);
+        assertNull(ImageHandoff.get(shown));
+        for (long handle : newer) {
+            ImageHandoff.release(handle);
+        }
+    }
+
+    @Test
+    public void acquiredEntrySurvivesEvictionUntilReleased() {
+        long uploading = ImageHandoff.put(JPEG, "image/jpeg");
+        assertNotNull(ImageHandoff.acquire(uploading));
+        List<Long> newer = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            newer.add(ImageHandoff.put(JPEG, "image/jpeg"));
+        }
+
+        assertNotNull(ImageHandoff.get(uploading));
+        ImageHandoff.release(uploading);
+        assertNotNull(ImageHandoff.get(uploading));
+        ImageHandoff.release(uploading);
+        assertNull(ImageHandoff.get(uploading));
+        for (long handle : newer) {
+            ImageHandoff.release(handle);
+        }
+    }
+}
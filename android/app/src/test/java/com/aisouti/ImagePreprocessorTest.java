@@ -0,0 +1,84 @@
+package com.aisouti;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class ImagePreprocessorTest {
+    private static final int WIDTH = 400;
+    private static final int HEIGHT = 800;
+    private static final int WHITE = 0xFFFFFFFF;
+    private static final int TEXT = 0xFF222222;
+
+    @Test
+    public void trimsToTextWithMargin() {
+        int[] pixels = page();
+        fill(pixels, 100, 300, 260, 340, TEXT);
+        ImagePreprocessor preprocessor = new ImagePreprocessor();
+        preprocessor.setMargin(10);
+        int[] bounds = new int[4];
+
+        preprocessor.process(pixels, WIDTH, HEIGHT, null, bounds);
+
+        assertArrayEquals(new int[] {90, 290, 270, 350}, bounds);
+    }
+
+    @Test
+    public void ignoresExcludedBars() {
+        int[] pixels = page();
+        // Status bar and navigation bar content
+        fill(pixels, 0, 0, WIDTH, 40, TEXT);
+        fill(pixels, 0, HEIGHT - 60, WIDTH, HEIGHT, TEXT);
+        fill(pixels, 100, 300, 260, 340, TEXT);
+        ImagePreprocessor preprocessor = new ImagePreprocessor();
+        preprocessor.setExcludedBands(40, 60);
+        preprocessor.setMargin(0);
+        int[] bounds = new int[4];
+
+        preprocessor.process(pixels, WIDTH, HEIGHT, null, bounds);
+
+        assertArrayEquals(new int[] {100, 300, 260, 340}, bounds);
+    }
+
+    @Test
+    public void maskedButtonIsNotContent() {
+        int[] pixels = page();
+        fill(pixels, 100, 300, 260, 340, TEXT);
+        // Floating button far from the question
+        fill(pixels, 20, 600, 68, 648, 0xFF6200EE);
+        ImagePreprocessor preprocessor = new ImagePreprocessor();
+        preprocessor.setMargin(0);
+        int[] bounds = new int[4];
+
+        preprocessor.process(pixels, WIDTH, HEIGHT, new int[] {20, 600, 68, 648}, bounds);
+
+        assertArrayEquals(new int[] {100, 300, 260, 340}, bounds);
+        assertEquals(WHITE, pixels[620 * WIDTH + 40]);
+    }
+
+    @Test
+    public void blankPageKeepsEverythingBetweenTheBars() {
+        ImagePreprocessor preprocessor = new ImagePreprocessor();
+        preprocessor.setExcludedBands(40, 60);
+        int[] bounds = new int[4];
+
+        preprocessor.process(page(), WIDTH, HEIGHT, null, bounds);
+
+        assertArrayEquals(new int[] {0, 40, WIDTH, HEIGHT - 60}, bounds);
+    }
+
+    private static int[] page() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        Arrays.fill(pixels, WHITE);
+        return pixels;
+    }
+
+    private static void fill(int[] pixels, int left, int top, int right, int bottom, int color) {
+        for (int y = top; y < bottom; y++) {
+            Arrays.fill(pixels, y * WIDTH + left, y * WIDTH + right, color);
+        }
+    }
+}
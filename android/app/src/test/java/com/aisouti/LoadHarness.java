@@ -0,0 +1,291 @@
+package com.aisouti;
+
+import static org.robolectric.Shadows.shadowOf;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load run of the capture → upload encode → request → stream →
+ * render path against two local {@link MockChatServer}s: a primary with
+ * injected failures and a healthy fallback, so failover and endpoint
+ * ranking are exercised too.
+ *
+ * Each request runs the {@link CapturePipeline} stages after conversion on
+ * a synthesized screenshot, since a MediaProjection frame cannot be
+ * produced without a user grant, and takes the hand-off like the answer
+ * screen does. The answer is rendered while it streams the way
+ * {@link AnswerRenderer} does it, re-rendering only changed blocks, and
+ * checked against a render of the whole answer.
+ *
+ * Requests go through their own {@link RequestScheduler} and
+ * {@link AnswerClient}. Times are taken from System.nanoTime, as
+ * Robolectric pauses SystemClock.
+ */
+public class LoadHarness {
+    private static final String TAG = "LoadHarness";
+
+    private static final String SYSTEM_PROMPT = "你是一个专业的题目解答助手。";
+    private static final String USER_PROMPT = "请解答这道题目。";
+
+    public static final class Config {
+        public int requests = 40;
+        public int concurrency = 3;
+        public long latencyMs = 300;
+        public long chunkIntervalMs = 20;
+        public double errorRate = 0.1;
+        public double rateLimitRate = 0.05;
+        public long timeoutS = 60;
+    }
+
+    public static final class Report {
+        public int requests;
+        public int failures;
+        public int serverRequests;
+        public long elapsedMs;
+        public long peakHeap;
+        // Answers whose streamed render differs from a render of the whole answer
+        public int renderMismatches;
+        public final LogHistogram capture = new LogHistogram();
+        public final LogHistogram encode = new LogHistogram();
+        public final LogHistogram firstToken = new LogHistogram();
+        public final LogHistogram complete = new LogHistogram();
+        // Total render time of one streamed answer
+        public final LogHistogram render = new LogHistogram();
+
+        public String format() {
+            return String.format(Locale.US, "请求 %d 次 · 失败 %d 次 · 服务端收到 %d 次\n"
+                            + "吞吐 %.2f 次/秒 · 用时 %d ms · 峰值堆 %d MB\n"
+                            + "截图 p50 %d / p99 %d ms\n编码 p50 %d / p99 %d ms\n首字 p50 %d / p99 %d ms\n"
+                            + "完成 p50 %d / p99 %d ms\n渲染 p50 %d / p99 %d ms · 不一致 %d 次",
+                    requests, failures, serverRequests,
+                    requests * 1000f / Math.max(1, elapsedMs), elapsedMs, peakHeap / (1024 * 1024),
+                    capture.percentile(50), capture.percentile(99),
+                    encode.percentile(50), encode.percentile(99),
+                    firstToken.percentile(50), firstToken.percentile(99),
+                    complete.percentile(50), complete.percentile(99),
+                    render.percentile(50), render.percentile(99), renderMismatches);
+        }
+    }
+
+    private LoadHarness() {}
+
+    /**
+     * Blocks until every request has finished. Must run on the main looper
+     * thread (the test thread under Robolectric), which it keeps running to
+     * deliver the capture hand-offs.
+     */
+    public static Report run(ApiClient apiClient, Config config) throws IOException, InterruptedException {
+        Report report = new Report();
+        Bitmap screenshot = syntheticScreenshot();
+        CapturePipeline pipeline = new CapturePipeline();
+        AnswerClient client = new AnswerClient(apiClient);
+        RequestScheduler scheduler = new RequestScheduler(config.concurrency);
+        ThreadLocal<AdaptiveEncoder> encoders = new ThreadLocal<AdaptiveEncoder>() {
+            @Override
+            protected AdaptiveEncoder initialValue() {
+                return new AdaptiveEncoder();
+            }
+        };
+        AtomicInteger failures = new AtomicInteger();
+        AtomicLong peakHeap = new AtomicLong();
+
+        try (MockChatServer primary = new MockChatServer();
+             MockChatServer fallback = new MockChatServer()) {
+            primary.setLatency(config.latencyMs);
+            primary.setChunking(config.chunkIntervalMs, 4);
+            primary.setErrorRate(config.errorRate);
+            primary.setRateLimitRate(config.rateLimitRate);
+            fallback.setLatency(config.latencyMs * 2);
+            fallback.setChunking(config.chunkIntervalMs, 4);
+            List<AnswerClient.Target> targets = new ArrayList<>();
+            targets.add(new AnswerClient.Target(primary.getBaseUrl(), "mock-key", "mock-model"));
+            targets.add(new AnswerClient.Target(fallback.getBaseUrl(), "mock-key", "mock-model"));
+
+            CountDownLatch done = new CountDownLatch(config.requests);
+            long start = now();
+            for (int i = 0; i < config.requests; i++) {
+                scheduler.submit("Load " + i, handle -> {
+                    try {
+                        long begin = now();
+                        ImageHandoff.Entry image = capture(pipeline, screenshot);
+                        long captured = now();
+                        AdaptiveEncoder.Result upload;
+                        try {
+                            upload = encodeUpload(encoders.get(), image);
+                        } finally {
+                            ImageHandoff.release(image.handle);
+                        }
+                        long sent = now();
+                        long[] firstToken = {0};
+                        StreamRenderer renderer = new StreamRenderer();
+                        String answer = client.complete(handle, targets, null, (model, stream) -> {
+                            ChatRequestWriter writer = new ChatRequestWriter(model, SYSTEM_PROMPT, USER_PROMPT,
+                                    upload.bytes, upload.mimeType);
+                            writer.setStream(stream);
+                            writer.setDetail(upload.detail);
+                            return writer;
+                        }, delta -> {
+                            if (firstToken[0] == 0) {
+                                firstToken[0] = now();
+                            }
+                            renderer.append(delta);
+                        });
+                        long end = now();
+                        boolean matches = renderer.rendered().equals(AnswerMarkdown.renderAll(answer).toString());
+                        synchronized (report) {
+                            report.capture.record(captured - begin);
+                            report.encode.record(sent - captured);
+                            report.firstToken.record((firstToken[0] != 0 ? firstToken[0] : end) - sent);
+                            report.complete.record(end - sent);
+                            report.render.record(renderer.renderMs);
+                            if (!matches) {
+                                report.renderMismatches++;
+                            }
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                        Log.d(TAG, "Request failed: " + e.getMessage());
+                    } finally {
+                        Runtime runtime = Runtime.getRuntime();
+                        long used = runtime.totalMemory() - runtime.freeMemory();
+                        peakHeap.accumulateAndGet(used, Math::max);
+                        done.countDown();
+                    }
+                });
+            }
+            long deadline = start + TimeUnit.SECONDS.toMillis(config.timeoutS);
+            while (!done.await(5, TimeUnit.MILLISECONDS)) {
+                if (now() > deadline) {
+                    throw new IOException("Load run did not finish in " + config.timeoutS + "s");
+                }
+                // Delivers the hand-offs, as the UI thread would
+                shadowOf(Looper.getMainLooper()).idle();
+            }
+            report.elapsedMs = now() - start;
+            report.serverRequests = primary.getRequestCount() + fallback.getRequestCount();
+        } finally {
+            pipeline.quit();
+            screenshot.recycle();
+        }
+        report.requests = config.requests;
+        report.failures = failures.get();
+        report.peakHeap = peakHeap.get();
+        Log.d(TAG, report.format() + "\n" + client.getEndpointPool().describe());
+        return report;
+    }
+
+    // Runs the capture stages on the pipeline thread and claims the hand-off; the caller releases it
+    private static ImageHandoff.Entry capture(CapturePipeline pipeline, Bitmap screenshot)
+            throws IOException, InterruptedException {
+        CompletableFuture<Long> handoff = new CompletableFuture<>();
+        pipeline.getHandler().post(() -> pipeline.processFrame(screenshot, null, PerfTracer.begin(),
+                new CapturePipeline.Callback() {
+                    @Override
+                    public void onEncoded(long handle) {
+                        handoff.complete(handle);
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        handoff.completeExceptionally(e);
+                    }
+                }));
+        try {
+            long handle = handoff.get();
+            PerfTracer.take(handle);
+            ImageHandoff.Entry image = ImageHandoff.claim(handle);
+            if (image == null) {
+                throw new IOException("Screenshot " + handle + " is gone");
+            }
+            return image;
+        } catch (ExecutionException e) {
+            throw new IOException("Capture failed", e.getCause());
+        }
+    }
+
+    // What the answer screen does with the hand-off when nothing is selected
+    private static AdaptiveEncoder.Result encodeUpload(AdaptiveEncoder encoder, ImageHandoff.Entry image)
+            throws IOException {
+        Bitmap bitmap = BitmapFactory.decodeByteArray(image.bytes, 0, image.bytes.length);
+        if (bitmap == null) {
+            throw new IOException("Undecodable screenshot");
+        }
+        try {
+            return encoder.encode(bitmap);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Renders a streamed answer like {@link AnswerRenderer}: blocks that did
+     * not change since the last delta keep their rendered text. Network
+     * thread only.
+     */
+    private static final class StreamRenderer {
+        private final StringBuilder text = new StringBuilder();
+        private List<String> sources = new ArrayList<>();
+        private List<CharSequence> blocks = new ArrayList<>();
+        long renderMs;
+
+        void append(String delta) {
+            long start = System.nanoTime();
+            text.append(delta);
+            List<String> nextSources = AnswerMarkdown.splitBlocks(text.toString());
+            List<CharSequence> next = new ArrayList<>(nextSources.size());
+            for (int i = 0; i < nextSources.size(); i++) {
+                String source = nextSources.get(i);
+                boolean same = i < sources.size() && sources.get(i).equals(source);
+                next.add(same ? blocks.get(i) : AnswerMarkdown.render(source));
+            }
+            sources = nextSources;
+            blocks = next;
+            renderMs += TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+
+        String rendered() {
+            return TextUtils.join("\n\n", blocks);
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    // A page of dark glyph-like strokes in text lines on white, close to a worksheet for the encoder
+    private static Bitmap syntheticScreenshot() {
+        int width = 1080;
+        Bitmap bitmap = Bitmap.createBitmap(width, 1920, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.WHITE);
+        int[] row = new int[width];
+        int ink = Color.rgb(33, 33, 33);
+        for (int line = 0; line < 30; line++) {
+            int top = 90 + line * 58;
+            for (int y = top; y < top + 36; y++) {
+                for (int x = 0; x < width; x++) {
+                    // Stroke pattern shifts per line and row so lines are not identical
+                    boolean stroke = x >= 48 && x < width - 48 - line * 11 && ((x + y / 6 + line) / 5) % 3 == 0;
+                    row[x] = stroke ? ink : Color.WHITE;
+                }
+                bitmap.setPixels(row, 0, width, 0, y, width, 1);
+            }
+        }
+        return bitmap;
+    }
+}
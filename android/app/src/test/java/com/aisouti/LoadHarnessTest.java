@@ -0,0 +1,41 @@
+package com.aisouti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Concurrent answers through the whole path (capture, upload encode,
+ * scheduler, failover, SSE, rendering) against local mock servers, one of
+ * which fails some requests. Every answer must still arrive and render the
+ * same while streaming as when rendered at once.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class LoadHarnessTest {
+    @Test
+    public void concurrentRequestsAllCompleteDespiteInjectedFailures() throws Exception {
+        LoadHarness.Config config = new LoadHarness.Config();
+        config.requests = 24;
+        config.concurrency = 4;
+        config.latencyMs = 50;
+        config.chunkIntervalMs = 5;
+        config.errorRate = 0.2;
+        config.rateLimitRate = 0.1;
+
+        LoadHarness.Report report = LoadHarness.run(new ApiClient(), config);
+
+        assertEquals(0, report.failures);
+        assertEquals(config.requests, report.capture.count());
+        assertEquals(config.requests, report.complete.count());
+        assertEquals(config.requests, report.render.count());
+        assertEquals(0, report.renderMismatches);
+        // Failed attempts were retried on the fallback
+        assertTrue(report.serverRequests >= config.requests);
+        assertTrue(report.firstToken.percentile(50) <= report.complete.percentile(50));
+        assertTrue(report.complete.percentile(99) >= config.latencyMs);
+        assertTrue(report.format().contains("失败 0 次"));
+    }
+}
@@ -0,0 +1,183 @@
+package com.aisouti;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * OpenAI compatible chat completion endpoint on top of
+ * {@link MockWebServer}, so the request path can be exercised without
+ * network or a paid key.
+ *
+ * Serves {@code POST /v1/chat/completions}. Streamed requests get one SSE
+ * chunk per {@link #setChunking chunk}, then a usage chunk and [DONE];
+ * plain requests get a single JSON body. Latency, error and rate limit
+ * injection are configurable while it runs.
+ */
+public class MockChatServer implements Closeable {
+    static final String ANSWER = "**解题思路**\n\n设所求为 $x$，由题意可得方程 $2x + 3 = 11$。\n\n"
+            + "**解答过程**\n\n移项得 $2x = 8$，两边同除以 2，得 $x = 4$。\n\n**最终答案**\n\n$x = 4$";
+
+    // Seeded, so injected failures are the same from run to run
+    private static final long SEED = 42;
+
+    private final MockWebServer server = new MockWebServer();
+    private final Random random = new Random(SEED);
+
+    private volatile long latencyMs = 300;
+    private volatile long chunkIntervalMs = 30;
+    private volatile int chunkChars = 4;
+    private volatile double errorRate;
+    private volatile double rateLimitRate;
+    private volatile boolean exhaustRateLimit;
+
+    public MockChatServer() throws IOException {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                try {
+                    return respond(request);
+                } catch (JSONException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        server.start();
+    }
+
+    public String getBaseUrl() {
+        return ApiClient.normalizeBaseUrl(server.url("/v1").toString());
+    }
+
+    /** Delay before the response headers, like queueing and prefill on a real server. */
+    public void setLatency(long latencyMs) {
+        this.latencyMs = latencyMs;
+    }
+
+    /** Streamed answers are split into chunks of {@code chars}, one every {@code intervalMs}. */
+    public void setChunking(long intervalMs, int chars) {
+        this.chunkIntervalMs = intervalMs;
+        this.chunkChars = Math.max(1, chars);
+    }
+
+    /** Fraction of requests answered with 500. */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /** Fraction of requests answered with 429 and Retry-After. */
+    public void setRateLimitRate(double rateLimitRate) {
+        this.rateLimitRate = rateLimitRate;
+    }
+
+    /** Successful responses report an exhausted request budget via x-ratelimit-* headers. */
+    public void setExhaustRateLimit(boolean exhaustRateLimit) {
+        this.exhaustRateLimit = exhaustRateLimit;
+    }
+
+    public int getRequestCount() {
+        return server.getRequestCount();
+    }
+
+    private MockResponse respond(RecordedRequest request) throws JSONException {
+        if (!"POST".equals(request.getMethod()) || !request.getPath().endsWith("/chat/completions")) {
+            return json(404, "{\"error\":{\"message\":\"not found\"}}");
+        }
+        double roll;
+        synchronized (random) {
+            roll = random.nextDouble();
+        }
+        if (roll < errorRate) {
+            return json(500, "{\"error\":{\"message\":\"injected failure\",\"type\":\"server_error\"}}");
+        }
+        if (roll < errorRate + rateLimitRate) {
+            return json(429, "{\"error\":{\"message\":\"injected rate limit\",\"type\":\"rate_limit_error\"}}")
+                    .setHeader("Retry-After", "1");
+        }
+
+        MockResponse response;
+        if (request.getBody().readUtf8().contains("\"stream\":true")) {
+            response = stream();
+        } else {
+            JSONObject body = new JSONObject()
+                    .put("id", "mock")
+                    .put("object", "chat.completion")
+                    .put("choices", new JSONArray().put(new JSONObject()
+                            .put("index", 0)
+                            .put("message", new JSONObject().put("role", "assistant").put("content", ANSWER))
+                            .put("finish_reason", "stop")))
+                    .put("usage", usage());
+            response = json(200, body.toString());
+        }
+        if (exhaustRateLimit) {
+            response.setHeader("x-ratelimit-remaining-requests", "0")
+                    .setHeader("x-ratelimit-reset-requests", "1s");
+        }
+        return response;
+    }
+
+    private MockResponse stream() throws JSONException {
+        StringBuilder events = new StringBuilder();
+        int chars = chunkChars;
+        int chunks = 0;
+        for (int i = 0; i < ANSWER.length(); i += chars) {
+            String delta = ANSWER.substring(i, Math.min(ANSWER.length(), i + chars));
+            JSONObject chunk = new JSONObject()
+                    .put("object", "chat.completion.chunk")
+                    .put("choices", new JSONArray().put(new JSONObject()
+                            .put("index", 0)
+                            .put("delta", new JSONObject().put("content", delta))));
+            events.append("data: ").append(chunk).append("\n\n");
+            chunks++;
+        }
+        JSONObject last = new JSONObject()
+                .put("object", "chat.completion.chunk")
+                .put("choices", new JSONArray())
+                .put("usage", usage());
+        events.append("data: ").append(last).append("\n\n");
+        events.append("data: [DONE]\n\n");
+
+        MockResponse response = new MockResponse()
+                .setHeader("Content-Type", "text/event-stream")
+                .setHeadersDelay(latencyMs, TimeUnit.MILLISECONDS)
+                .setChunkedBody(events.toString(), 1024);
+        if (chunkIntervalMs > 0) {
+            // Paces the body at about one delta per interval
+            long bytesPerChunk = Math.max(1, events.toString().getBytes(StandardCharsets.UTF_8).length / chunks);
+            response.throttleBody(bytesPerChunk, chunkIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        return response;
+    }
+
+    private MockResponse json(int code, String body) {
+        return new MockResponse()
+                .setResponseCode(code)
+                .setHeader("Content-Type", "application/json")
+                .setHeadersDelay(latencyMs, TimeUnit.MILLISECONDS)
+                .setBody(body);
+    }
+
+    private static JSONObject usage() throws JSONException {
+        int completion = ANSWER.length();
+        return new JSONObject()
+                .put("prompt_tokens", 1200)
+                .put("completion_tokens", completion)
+                .put("total_tokens", 1200 + completion);
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.shutdown();
+    }
+}
@@ -0,0 +1,59 @@
+package com.aisouti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Rect;
+import android.view.Gravity;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class OverlayAnswerPanelTest {
+    private static final int SCREEN_HEIGHT = 2400;
+
+    @Test
+    public void frameRetainedWhileThePanelWasShownIsNotReused() {
+        OverlayAnswerPanel.setShown(true);
+        long retained = System.nanoTime();
+        assertTrue(OverlayAnswerPanel.mayBeInFrame(retained));
+
+        // The floating button collapses the panel right before the next capture
+        OverlayAnswerPanel.setShown(false);
+        long next = System.nanoTime();
+
+        assertTrue(OverlayAnswerPanel.mayBeInFrame(retained));
+        assertFalse(OverlayAnswerPanel.mayBeInFrame(next));
+    }
+
+    @Test
+    public void opensOnTheOtherHalfThanTheButton() {
+        // Default button position near the top
+        assertEquals(Gravity.BOTTOM, OverlayAnswerPanel.gravityAwayFrom(new Rect(50, 200, 170, 320), SCREEN_HEIGHT));
+        assertEquals(Gravity.TOP, OverlayAnswerPanel.gravityAwayFrom(new Rect(50, 1900, 170, 2020), SCREEN_HEIGHT));
+        assertEquals(Gravity.BOTTOM, OverlayAnswerPanel.gravityAwayFrom(null, SCREEN_HEIGHT));
+    }
+
+    @Test
+    public void compactPanelLeavesMostOfTheScreenVisible() {
+        int compact = OverlayAnswerPanel.panelHeight(SCREEN_HEIGHT, false);
+        int tall = OverlayAnswerPanel.panelHeight(SCREEN_HEIGHT, true);
+
+        assertTrue(compact <= SCREEN_HEIGHT / 3);
+        assertTrue(tall > compact);
+        // Most of the half with the button stays uncovered even when tall
+        assertTrue(tall < SCREEN_HEIGHT * 0.6);
+    }
+
+    @Test
+    public void draggedPanelStaysOnScreen() {
+        int height = OverlayAnswerPanel.panelHeight(SCREEN_HEIGHT, true);
+
+        assertEquals(0, OverlayAnswerPanel.clampOffset(-300, height, SCREEN_HEIGHT));
+        assertEquals(500, OverlayAnswerPanel.clampOffset(500, height, SCREEN_HEIGHT));
+        assertEquals(SCREEN_HEIGHT - height, OverlayAnswerPanel.clampOffset(SCREEN_HEIGHT, height, SCREEN_HEIGHT));
+    }
+}
@@ -0,0 +1,184 @@
+package com.aisouti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+
+/**
+ * Closing or re-analyzing cancels the request handle: the socket is closed
+ * right away, nothing is posted to the screen that went away, and the
+ * screenshot and everything the task captured can be collected.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RequestSchedulerTest {
+    private static final byte[] JPEG = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9};
+    private static final String ANSWER = "{\"choices\":[{\"message\":{\"content\":\"4\"}}]}";
+    private static final long TIMEOUT_S = 5;
+
+    private MockWebServer server;
+    private ApiClient apiClient;
+    private AnswerClient answerClient;
+    private RequestScheduler scheduler;
+    private Handler mainHandler;
+    private List<AnswerClient.Target> targets;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        apiClient = new ApiClient();
+        answerClient = new AnswerClient(apiClient);
+        scheduler = new RequestScheduler(1);
+        mainHandler = new Handler(Looper.getMainLooper());
+        String baseUrl = ApiClient.normalizeBaseUrl(server.url("/v1/").toString());
+        targets = Collections.singletonList(new AnswerClient.Target(baseUrl, "key", "gpt-4o"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void cancelAbortsTheRunningRequestAndReleasesTheScreenshot() throws Exception {
+        // The server never answers, as a stalled 120 s request would
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        long imageHandle = ImageHandoff.put(JPEG, "image/jpeg");
+        ImageHandoff.Entry image = ImageHandoff.claim(imageHandle);
+        AtomicInteger callbacks = new AtomicInteger();
+        CountDownLatch finished = new CountDownLatch(1);
+
+        RequestScheduler.Handle request = scheduler.submit("Answer", handle -> {
+            try {
+                answerClient.complete(handle, targets, null, (model, stream) -> writer(image, model, stream),
+                        delta -> post(handle, callbacks::incrementAndGet));
+                post(handle, callbacks::incrementAndGet);
+            } finally {
+                finished.countDown();
+            }
+        });
+        assertNotNull(server.takeRequest(TIMEOUT_S, TimeUnit.SECONDS));
+
+        // What the screen does when it is closed
+        request.cancel();
+        ImageHandoff.release(imageHandle);
+
+        assertTrue("task did not return after cancel", finished.await(1, TimeUnit.SECONDS));
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(0, callbacks.get());
+        assertNull(ImageHandoff.get(imageHandle));
+        awaitNoConnections();
+    }
+
+    @Test
+    public void answerPostedBeforeCancelIsDropped() throws Exception {
+        server.enqueue(new MockResponse().setBody(ANSWER));
+        long imageHandle = ImageHandoff.put(JPEG, "image/jpeg");
+        ImageHandoff.Entry image = ImageHandoff.claim(imageHandle);
+        AtomicInteger callbacks = new AtomicInteger();
+        CountDownLatch posted = new CountDownLatch(1);
+
+        RequestScheduler.Handle request = scheduler.submit("Answer", handle -> {
+            answerClient.complete(handle, targets, null, (model, stream) -> writer(image, model, stream), delta -> {});
+            post(handle, callbacks::incrementAndGet);
+            posted.countDown();
+        });
+        assertTrue(posted.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+        // Re-analyze before the main thread got to the answer
+        request.cancel();
+        ImageHandoff.release(imageHandle);
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertEquals(0, callbacks.get());
+        assertNull(ImageHandoff.get(imageHandle));
+    }
+
+    @Test
+    public void cancelledQueuedTaskNeverRunsAndIsCollected() throws Exception {
+        CountDownLatch blocker = new CountDownLatch(1);
+        RequestScheduler.Handle busy = scheduler.submit("Busy", handle -> blocker.await());
+        AtomicBoolean ran = new AtomicBoolean();
+        byte[] upload = new byte[4 * 1024 * 1024];
+        WeakReference<byte[]> uploadRef = new WeakReference<>(upload);
+        RequestScheduler.Handle queued = submitUpload(upload, ran);
+        assertEquals(1, scheduler.queuedCount());
+
+        queued.cancel();
+        upload = null;
+
+        assertEquals(0, scheduler.queuedCount());
+        assertTrue("cancelled task is still referenced", collected(uploadRef));
+        blocker.countDown();
+        busy.cancel();
+        awaitIdle();
+        assertFalse(ran.get());
+    }
+
+    private RequestScheduler.Handle submitUpload(byte[] upload, AtomicBoolean ran) {
+        return scheduler.submit("Queued", handle -> ran.set(upload.length > 0));
+    }
+
+    // The pattern the screens use to deliver results
+    private void post(RequestScheduler.Handle handle, Runnable action) {
+        mainHandler.post(() -> {
+            if (!handle.isCancelled()) {
+                action.run();
+            }
+        });
+    }
+
+    private static ChatRequestWriter writer(ImageHandoff.Entry image, String model, boolean stream) {
+        ChatRequestWriter writer = new ChatRequestWriter(model, "system", "question", image.bytes, image.mimeType);
+        writer.setStream(stream);
+        return writer;
+    }
+
+    private void awaitNoConnections() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_S);
+        while (apiClient.getConnectionPool().connectionCount() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, apiClient.getConnectionPool().connectionCount());
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_S);
+        while (scheduler.runningCount() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, scheduler.runningCount());
+    }
+
+    private static boolean collected(WeakReference<?> ref) throws InterruptedException {
+        for (int i = 0; i < 20 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        return ref.get() == null;
+    }
+}
@@ -0,0 +1,130 @@
+package com.aisouti;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request body construction for an uploaded screenshot: the streaming
+ * Base64 encoder on its own, the full JSON body as written to the socket,
+ * and the JDK encoder holding the whole Base64 string as a baseline.
+ *
+ * {@link #jsonObjectRequestBody} is the body as the app built it before
+ * {@link ChatRequestWriter}: a Base64 string of the image inside a
+ * JSONObject tree, serialized to a String and then to UTF-8 bytes.
+ * java.util.Base64 stands in for android.util.Base64 with NO_WRAP, which
+ * produces the same output.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChatRequestWriterBenchmark {
+    private static final String SYSTEM_PROMPT = "你是一个专业的题目解答助手。请分析图片中的题目，给出详细的解题步骤和最终答案。";
+    private static final String USER_PROMPT = "请解答这道题目。";
+
+    // Typical adaptive upload, the default 400 KB budget, and an unbudgeted full-screen JPEG
+    @Param({"131072", "409600", "2097152"})
+    public int jpegBytes;
+
+    private byte[] jpeg;
+    private final CountingOutputStream sink = new CountingOutputStream();
+
+    /** Discards the body like a socket would, keeping only its length. */
+    static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        // JPEG entropy-coded data is close to random
+        jpeg = new byte[jpegBytes];
+        new Random(42).nextBytes(jpeg);
+    }
+
+    @Benchmark
+    public long streamingBase64() throws IOException {
+        sink.count = 0;
+        ChatRequestWriter.writeBase64(jpeg, sink);
+        return sink.count;
+    }
+
+    @Benchmark
+    public long requestBody() throws IOException {
+        sink.count = 0;
+        ChatRequestWriter writer = new ChatRequestWriter("gpt-4o", SYSTEM_PROMPT, USER_PROMPT, jpeg, "image/jpeg");
+        writer.setMaxTokens(4096);
+        writer.setStream(true);
+        writer.setDetail("high");
+        // OkHttp asks for the length before writing the body
+        writer.contentLength();
+        writer.writeTo(sink);
+        return sink.count;
+    }
+
+    @Benchmark
+    public String jdkBase64String() {
+        return Base64.getEncoder().encodeToString(jpeg);
+    }
+
+    @Benchmark
+    public long jsonObjectRequestBody() throws IOException, JSONException {
+        sink.count = 0;
+        String imageBase64 = Base64.getEncoder().encodeToString(jpeg);
+
+        JSONObject imageUrl = new JSONObject();
+        imageUrl.put("url", "data:image/jpeg;base64," + imageBase64);
+        imageUrl.put("detail", "high");
+        JSONObject imageContent = new JSONObject();
+        imageContent.put("type", "image_url");
+        imageContent.put("image_url", imageUrl);
+        JSONObject textContent = new JSONObject();
+        textContent.put("type", "text");
+        textContent.put("text", USER_PROMPT);
+        JSONArray content = new JSONArray();
+        content.put(imageContent);
+        content.put(textContent);
+
+        JSONObject systemMsg = new JSONObject();
+        systemMsg.put("role", "system");
+        systemMsg.put("content", SYSTEM_PROMPT);
+        JSONObject userMsg = new JSONObject();
+        userMsg.put("role", "user");
+        userMsg.put("content", content);
+        JSONArray messages = new JSONArray();
+        messages.put(systemMsg);
+        messages.put(userMsg);
+
+        JSONObject requestBody = new JSONObject();
+        requestBody.put("model", "gpt-4o");
+        requestBody.put("max_tokens", 4096);
+        requestBody.put("stream", true);
+        requestBody.put("messages", messages);
+        sink.write(requestBody.toString().getBytes(StandardCharsets.UTF_8));
+        return sink.count;
+    }
+}
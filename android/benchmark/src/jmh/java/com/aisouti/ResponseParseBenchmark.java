@@ -0,0 +1,91 @@
+package com.aisouti;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of chat completion responses: a streamed answer through
+ * {@link SseParser}, and the same answer as a single JSON body.
+ *
+ * The JVM runs the org.json reference implementation, not Android's, so
+ * compare results of this benchmark with each other rather than with
+ * on-device numbers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResponseParseBenchmark {
+    private static final String LINE = "移项得 $2x = 8$，两边同除以 2，得 $x = 4$。\n";
+
+    // Answer length in characters; streamed a few characters per chunk like most endpoints
+    @Param({"500", "4000"})
+    public int answerChars;
+
+    @Param({"4"})
+    public int charsPerChunk;
+
+    private byte[] streamBody;
+    private String jsonBody;
+
+    @Setup
+    public void setUp() throws JSONException {
+        StringBuilder answer = new StringBuilder();
+        while (answer.length() < answerChars) {
+            answer.append(LINE);
+        }
+        answer.setLength(answerChars);
+
+        StringBuilder sse = new StringBuilder();
+        sse.append("data: {\"id\":\"c\",\"object\":\"chat.completion.chunk\",\"choices\":[{\"index\":0,"
+                + "\"delta\":{\"role\":\"assistant\"}}]}\n\n");
+        for (int i = 0; i < answerChars; i += charsPerChunk) {
+            String delta = answer.substring(i, Math.min(answerChars, i + charsPerChunk));
+            sse.append("data: {\"id\":\"c\",\"object\":\"chat.completion.chunk\",\"choices\":[{\"index\":0,"
+                    + "\"delta\":{\"content\":").append(JSONObject.quote(delta)).append("}}]}\n\n");
+        }
+        sse.append("data: [DONE]\n\n");
+        streamBody = sse.toString().getBytes(StandardCharsets.UTF_8);
+
+        jsonBody = "{\"id\":\"c\",\"object\":\"chat.completion\",\"choices\":[{\"index\":0,\"message\":"
+                + "{\"role\":\"assistant\",\"content\":" + JSONObject.quote(answer.toString())
+                + "},\"finish_reason\":\"stop\"}],\"usage\":{\"prompt_tokens\":1200,\"completion_tokens\":"
+                + answerChars + "}}";
+    }
+
+    @Benchmark
+    public String sseStream() throws IOException, JSONException {
+        StringBuilder answer = new StringBuilder();
+        try (SseParser parser = new SseParser(new ByteArrayInputStream(streamBody))) {
+            String data;
+            while ((data = parser.nextEvent()) != null) {
+                if (SseParser.DONE.equals(data)) {
+                    break;
+                }
+                answer.append(SseParser.extractDelta(data));
+            }
+        }
+        return answer.toString();
+    }
+
+    @Benchmark
+    public String jsonResponse() throws JSONException {
+        return new JSONObject(jsonBody)
+                .getJSONArray("choices")
+                .getJSONObject(0)
+                .getJSONObject("message")
+                .getString("content");
+    }
+}
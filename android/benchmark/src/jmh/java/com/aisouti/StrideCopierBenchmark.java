@@ -0,0 +1,56 @@
+package com.aisouti;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Row copy out of a padded RGBA_8888 plane, as done for every captured
+ * frame whose row stride is wider than the image.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StrideCopierBenchmark {
+    @Param({"720x1600", "1080x2400", "1440x3200"})
+    public String size;
+
+    // Bytes of row padding, as reported by Image.Plane.getRowStride()
+    @Param({"64"})
+    public int padding;
+
+    private ByteBuffer src;
+    private ByteBuffer dst;
+    private int rowStride;
+    private int rowBytes;
+    private int height;
+
+    @Setup
+    public void setUp() {
+        String[] parts = size.split("x");
+        int width = Integer.parseInt(parts[0]);
+        height = Integer.parseInt(parts[1]);
+        rowBytes = width * 4;
+        rowStride = rowBytes + padding;
+        // Image planes are direct buffers
+        src = ByteBuffer.allocateDirect(rowStride * height);
+        dst = ByteBuffer.allocateDirect(rowBytes * height);
+        for (int i = 0; i < src.capacity(); i++) {
+            src.put(i, (byte) i);
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer copyRows() {
+        StrideCopier.copyRows(src, rowStride, rowBytes, height, dst);
+        return dst;
+    }
+}